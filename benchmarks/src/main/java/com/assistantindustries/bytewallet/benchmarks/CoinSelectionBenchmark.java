@@ -0,0 +1,76 @@
+package com.assistantindustries.bytewallet.benchmarks;
+
+import com.assistantindustries.bytewallet.AddressReceived;
+import com.assistantindustries.bytewallet.CoinSelectionStrategies;
+import com.assistantindustries.bytewallet.CoinSelectionStrategy;
+import com.assistantindustries.bytewallet.StrategyCoinSelector;
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.TransactionOutput;
+import org.bitcoinj.wallet.CoinSelection;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coin selection over the spend candidates of a synthetic wallet: the balance of one address, which selects every
+ * coin whatever the strategy, and picking coins for a send with each strategy, which sorts them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CoinSelectionBenchmark {
+
+    @Param({"1000", "10000"})
+    public int outputs;
+
+    @Param({"10", "1000"})
+    public int addresses;
+
+    private List<TransactionOutput> candidates;
+    private Address address;
+    private Coin target;
+
+    /** The strategy a send selects coins with, only the send benchmarks are run once per strategy. */
+    @State(Scope.Benchmark)
+    public static class Send {
+        @Param({"coinDays", "largestFirst", "exactMatch"})
+        public String strategy;
+
+        private CoinSelectionStrategy selectionStrategy;
+
+        @Setup
+        public void setUp() {
+            selectionStrategy = CoinSelectionStrategies.forName(strategy);
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        SyntheticWallet synthetic = new SyntheticWallet(outputs, addresses, 100);
+        candidates = synthetic.candidates();
+        address = synthetic.addresses.get(0);
+        // A tenth of the wallet, so a send needs a good number of inputs.
+        target = synthetic.wallet.getBalance().divide(10);
+    }
+
+    @Benchmark
+    public CoinSelection addressBalance() {
+        return new AddressReceived(address, 1).select(NetworkParameters.MAX_MONEY, candidates);
+    }
+
+    @Benchmark
+    public CoinSelection addressSelect(Send send) {
+        return new AddressReceived(address, 1, send.selectionStrategy).select(target, candidates);
+    }
+
+    @Benchmark
+    public CoinSelection walletSelect(Send send) {
+        return new StrategyCoinSelector(send.selectionStrategy, 1).select(target, candidates);
+    }
+}
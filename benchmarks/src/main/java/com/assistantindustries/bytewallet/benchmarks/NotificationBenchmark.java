@@ -0,0 +1,75 @@
+package com.assistantindustries.bytewallet.benchmarks;
+
+import com.assistantindustries.bytewallet.CoinsReceivedRouter;
+import com.assistantindustries.bytewallet.TransactionReceivedListener;
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.wallet.Wallet;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of telling the watchers of {@code listeners} addresses about a received transaction: the wallet calling one
+ * {@link TransactionReceivedListener} per watched address, against the single {@link CoinsReceivedRouter}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class NotificationBenchmark {
+
+    @Param({"10", "1000", "10000"})
+    public int listeners;
+
+    private Wallet wallet;
+    private Transaction transaction;
+    private List<TransactionReceivedListener> perAddress;
+    private CoinsReceivedRouter router;
+    private int notified;
+
+    @Setup
+    public void setUp() {
+        SyntheticWallet synthetic = new SyntheticWallet(0, listeners, 1);
+        wallet = synthetic.wallet;
+        // Pays two of the watched addresses, one of them twice.
+        transaction = synthetic.newTransaction(synthetic.addresses.get(0), Coin.COIN);
+        transaction.addOutput(Coin.CENT, synthetic.addresses.get(0));
+        transaction.addOutput(Coin.CENT, synthetic.addresses.get(listeners - 1));
+        perAddress = new ArrayList<TransactionReceivedListener>(listeners);
+        router = new CoinsReceivedRouter(new CoinsReceivedRouter.Listener() {
+            public void onTransactionReceived(Transaction transaction, Map<Address, Coin> received) {
+                notified += received.size();
+            }
+        });
+        for (Address address : synthetic.addresses) {
+            perAddress.add(new TransactionReceivedListener(address.toBase58()) {
+                @Override
+                public void onTransactionReceived(Wallet wallet, Transaction transaction, Coin prevBalance, Coin newBalance) {
+                    notified++;
+                }
+            });
+            router.register(address);
+        }
+    }
+
+    @Benchmark
+    public int perAddressListeners() {
+        for (TransactionReceivedListener listener : perAddress) {
+            listener.onCoinsReceived(wallet, transaction, Coin.ZERO, Coin.ZERO);
+        }
+        return notified;
+    }
+
+    @Benchmark
+    public int router() {
+        router.onCoinsReceived(wallet, transaction, Coin.ZERO, Coin.ZERO);
+        return notified;
+    }
+}
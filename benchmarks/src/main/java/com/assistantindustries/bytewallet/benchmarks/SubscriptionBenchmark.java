@@ -0,0 +1,104 @@
+package com.assistantindustries.bytewallet.benchmarks;
+
+import com.assistantindustries.bytewallet.CoinsReceivedRouter;
+import com.assistantindustries.bytewallet.SubscriptionRegistry;
+import com.assistantindustries.bytewallet.WatchedAddressBatcher;
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.Transaction;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bookkeeping done by the socket interface when clients subscribe, unsubscribe and disconnect: the subscription
+ * registry, with the listener the socket interface gives it, registering routed addresses and queueing watched
+ * address changes. The batcher window is longer than a run, so the wallet itself is not updated while measuring.
+ * <p>
+ * Only that bookkeeping is measured. The socket.io handlers around it, decoding the request, checking the login,
+ * joining the address room and sending the ack, are not, nor are the notifications pushed to subscribers; the load
+ * test covers them end to end.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SubscriptionBenchmark {
+
+    @Param({"1", "100", "1000"})
+    public int addressesPerSession;
+
+    /** Sessions subscribed to the same addresses for the whole run, so they always have subscribers. */
+    @Param({"0", "10"})
+    public int otherSessions;
+
+    private List<Address> addresses;
+    private SubscriptionRegistry registry;
+    private WatchedAddressBatcher batcher;
+    private UUID session;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        SyntheticWallet synthetic = new SyntheticWallet(0, 1, 1);
+        addresses = new ArrayList<Address>(addressesPerSession);
+        for (int i = 0; i < addressesPerSession; i++) {
+            addresses.add(new ECKey().toAddress(synthetic.params));
+        }
+        final CoinsReceivedRouter router = new CoinsReceivedRouter(new CoinsReceivedRouter.Listener() {
+            public void onTransactionReceived(Transaction transaction, Map<Address, Coin> received) {
+            }
+        });
+        batcher = new WatchedAddressBatcher(synthetic.wallet, TimeUnit.HOURS.toMillis(1));
+        registry = new SubscriptionRegistry(new SubscriptionRegistry.Listener() {
+            public void onFirstSubscriber(Address address) {
+                router.register(address);
+                batcher.watch(address);
+            }
+
+            public void onLastUnsubscribed(Address address) {
+                router.unregister(address);
+                batcher.unwatch(address);
+            }
+        });
+        for (int i = 0; i < otherSessions; i++) {
+            UUID other = UUID.randomUUID();
+            registry.openSession(other);
+            for (Address address : addresses) {
+                registry.subscribe(address, other);
+            }
+        }
+        session = UUID.randomUUID();
+        registry.openSession(session);
+    }
+
+    @TearDown
+    public void tearDown() {
+        batcher.stop();
+    }
+
+    @Benchmark
+    public boolean subscribeUnsubscribe() {
+        Address address = addresses.get(next++ % addresses.size());
+        registry.subscribe(address, session);
+        return registry.unsubscribe(address, session);
+    }
+
+    /** A client connecting, subscribing to all the addresses and disconnecting. */
+    @Benchmark
+    public int sessionLifetime() {
+        UUID session = new UUID(1, next++);
+        registry.openSession(session);
+        for (Address address : addresses) {
+            registry.subscribe(address, session);
+        }
+        return registry.removeSession(session).size();
+    }
+}
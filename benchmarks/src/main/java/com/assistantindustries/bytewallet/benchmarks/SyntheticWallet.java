@@ -0,0 +1,78 @@
+package com.assistantindustries.bytewallet.benchmarks;
+
+import org.bitcoinj.core.*;
+import org.bitcoinj.params.RegTestParams;
+import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.store.MemoryBlockStore;
+import org.bitcoinj.wallet.Wallet;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Wallet filled with made up transactions on a private regtest chain kept in memory, so the benchmarks need no
+ * network. Every transaction spends a random outpoint and pays one of {@code addressCount} wallet addresses; they are
+ * mined in blocks of {@code outputsPerBlock} transactions, giving the outputs a range of depths and values.
+ */
+public class SyntheticWallet {
+
+    public final NetworkParameters params;
+    public final Wallet wallet;
+    public final BlockChain chain;
+    public final List<Address> addresses;
+
+    private final Random random;
+
+    public SyntheticWallet(int outputCount, int addressCount, int outputsPerBlock) {
+        this.params = RegTestParams.get();
+        Context.propagate(new Context(params));
+        this.random = new Random(42);
+        this.wallet = new Wallet(params);
+        try {
+            this.chain = new BlockChain(params, wallet, new MemoryBlockStore(params));
+        } catch (BlockStoreException e) {
+            throw new RuntimeException(e);
+        }
+        this.addresses = new ArrayList<Address>(addressCount);
+        for (int i = 0; i < addressCount; i++) {
+            addresses.add(wallet.freshReceiveAddress());
+        }
+        List<Transaction> block = new ArrayList<Transaction>(outputsPerBlock);
+        for (int i = 0; i < outputCount; i++) {
+            block.add(newTransaction(addresses.get(i % addressCount), Coin.valueOf(10000 + random.nextInt(10000000))));
+            if (block.size() == outputsPerBlock || i == outputCount - 1) {
+                mine(block);
+                block.clear();
+            }
+        }
+    }
+
+    /** A transaction from nowhere paying the given value to the address. */
+    public Transaction newTransaction(Address to, Coin value) {
+        Transaction tx = new Transaction(params);
+        byte[] hash = new byte[32];
+        random.nextBytes(hash);
+        tx.addInput(new TransactionInput(params, tx, new byte[]{1}, new TransactionOutPoint(params, 0, Sha256Hash.wrap(hash))));
+        tx.addOutput(value, to);
+        return tx;
+    }
+
+    public void mine(List<Transaction> transactions) {
+        Block block = chain.getChainHead().getHeader().createNextBlock(null);
+        for (Transaction tx : transactions) {
+            block.addTransaction(tx);
+        }
+        block.solve();
+        try {
+            chain.add(block);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /** The wallet's spend candidates, as a coin selector receives them. */
+    public List<TransactionOutput> candidates() {
+        return wallet.calculateAllSpendCandidates(true, false);
+    }
+}
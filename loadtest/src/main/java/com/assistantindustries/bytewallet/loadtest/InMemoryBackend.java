@@ -0,0 +1,194 @@
+package com.assistantindustries.bytewallet.loadtest;
+
+import com.assistantindustries.bytewallet.Settings;
+import com.assistantindustries.bytewallet.SyncStatus;
+import com.assistantindustries.bytewallet.WalletShards;
+import com.google.common.util.concurrent.SettableFuture;
+import org.bitcoinj.core.*;
+import org.bitcoinj.kits.WalletAppKit;
+import org.bitcoinj.params.RegTestParams;
+import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.store.MemoryBlockStore;
+import org.bitcoinj.wallet.Wallet;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Stand-in for the kit and the network: wallet shards on a private regtest chain kept in memory, a broadcaster that
+ * accepts every transaction at once, and blocks mined on demand from the transactions injected or sent since the last
+ * one. The time each transaction was injected and each block mined is kept, so the clients can tell how long the
+ * events they trigger take to reach them.
+ */
+public class InMemoryBackend implements TransactionBroadcaster {
+
+    private final NetworkParameters params;
+    private final Context context;
+    private final BlockChain chain;
+    private final List<Wallet> wallets;
+    private final PeerGroup peerGroup;
+    private final WalletAppKit kit;
+    private final WalletShards shards;
+    private final SyncStatus syncStatus;
+    private final Random random = new Random(42);
+
+    private final List<Transaction> unmined = new ArrayList<Transaction>();
+    private final ConcurrentHashMap<String, Long> injected = new ConcurrentHashMap<String, Long>();
+    private final ConcurrentHashMap<Integer, Long> mined = new ConcurrentHashMap<Integer, Long>();
+
+    /**
+     * @param shardCount    number of wallets to spread the addresses over.
+     * @param fundingCoins  outputs of one coin paid to each wallet before the clients connect, so they can send.
+     */
+    public InMemoryBackend(int shardCount, int fundingCoins, Settings settings) {
+        this.params = RegTestParams.get();
+        this.context = new Context(params);
+        Context.propagate(context);
+        this.wallets = new ArrayList<Wallet>(shardCount);
+        for (int i = 0; i < shardCount; i++) {
+            wallets.add(new Wallet(params));
+        }
+        try {
+            this.chain = new BlockChain(params, wallets, new MemoryBlockStore(params));
+        } catch (BlockStoreException e) {
+            throw new RuntimeException(e);
+        }
+        List<Transaction> funding = new ArrayList<Transaction>();
+        for (Wallet wallet : wallets) {
+            for (int i = 0; i < fundingCoins; i++) {
+                funding.add(newTransaction(wallet.freshReceiveAddress(), Coin.COIN));
+            }
+        }
+        mine(funding);
+        // Never started, so it has no peers and doesn't filter for the wallets; transactions go through broadcastTransaction.
+        this.peerGroup = new PeerGroup(params, chain);
+        // Never started either, it only answers what SocketInterface reads from the kit: its parameters, chain and
+        // first wallet, and the peer group for anything else asking for it.
+        this.kit = new WalletAppKit(context, new File("."), "loadtest") {
+            @Override
+            public BlockChain chain() {
+                return chain;
+            }
+
+            @Override
+            public Wallet wallet() {
+                return wallets.get(0);
+            }
+
+            @Override
+            public PeerGroup peerGroup() {
+                return peerGroup;
+            }
+        };
+        this.shards = new WalletShards(wallets, this, settings);
+        this.syncStatus = new SyncStatus(settings);
+        // The chain is all here, a peer at the same height starting a download with no blocks left completes it.
+        final long height = chain.getBestChainHeight();
+        Peer peer = new Peer(params, new VersionMessage(params, (int) height),
+                new PeerAddress(params, InetAddress.getLoopbackAddress(), params.getPort()), chain) {
+            @Override
+            public long getBestHeight() {
+                return height;
+            }
+        };
+        syncStatus.onChainDownloadStarted(peer, 0);
+    }
+
+    public WalletAppKit getKit() {
+        return kit;
+    }
+
+    public WalletShards getShards() {
+        return shards;
+    }
+
+    public SyncStatus getSyncStatus() {
+        return syncStatus;
+    }
+
+    /** Makes the calling thread use the backend's context, as bitcoinj expects of every thread touching a wallet. */
+    public void propagateContext() {
+        Context.propagate(context);
+    }
+
+    /** Hands a transaction paying the address to the wallet owning it, as if a peer had relayed it. */
+    public Transaction inject(Address to, Coin value) {
+        Transaction tx = newTransaction(to, value);
+        Wallet wallet = shards.shardFor(to).getWallet();
+        injected.put(tx.getHashAsString(), System.nanoTime());
+        if (wallet.isPendingTransactionRelevant(tx)) {
+            wallet.receivePending(tx, null);
+            synchronized (unmined) {
+                unmined.add(tx);
+            }
+        } else {
+            injected.remove(tx.getHashAsString());
+        }
+        return tx;
+    }
+
+    /** Mines the transactions injected or broadcast since the last block, returning the new height. */
+    public int mineBlock() {
+        List<Transaction> transactions;
+        synchronized (unmined) {
+            transactions = new ArrayList<Transaction>(unmined);
+            unmined.clear();
+        }
+        return mine(transactions);
+    }
+
+    /** When the transaction was injected, or null if it wasn't. */
+    public Long injectedAt(String txid) {
+        return injected.remove(txid);
+    }
+
+    /** When the block at the height was mined, or null if it wasn't by the backend. */
+    public Long minedAt(int height) {
+        return mined.get(height);
+    }
+
+    public TransactionBroadcast broadcastTransaction(Transaction tx) {
+        synchronized (unmined) {
+            unmined.add(tx);
+        }
+        SettableFuture<Transaction> future = SettableFuture.create();
+        future.set(tx);
+        return TransactionBroadcast.createMockBroadcast(tx, future);
+    }
+
+    public void stop() {
+        shards.stop();
+    }
+
+    private synchronized int mine(List<Transaction> transactions) {
+        Block block = chain.getChainHead().getHeader().createNextBlock(null);
+        for (Transaction tx : transactions) {
+            block.addTransaction(tx);
+        }
+        block.solve();
+        int height = chain.getBestChainHeight() + 1;
+        mined.put(height, System.nanoTime());
+        try {
+            chain.add(block);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+        return height;
+    }
+
+    /** A transaction from nowhere paying the given value to the address. */
+    private Transaction newTransaction(Address to, Coin value) {
+        Transaction tx = new Transaction(params);
+        byte[] hash = new byte[32];
+        synchronized (random) {
+            random.nextBytes(hash);
+        }
+        tx.addInput(new TransactionInput(params, tx, new byte[]{1}, new TransactionOutPoint(params, 0, Sha256Hash.wrap(hash))));
+        tx.addOutput(value, to);
+        return tx;
+    }
+}
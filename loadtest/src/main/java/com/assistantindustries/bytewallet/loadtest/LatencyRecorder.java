@@ -0,0 +1,120 @@
+package com.assistantindustries.bytewallet.loadtest;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latencies of every event while recording, kept as raw samples so the percentiles reported are exact. Requests
+ * sent while recording and still waiting for their answer when the report is made are reported as unanswered.
+ */
+public class LatencyRecorder {
+
+    private static class Samples {
+        private long[] values = new long[1024];
+        private int count;
+        private long errors;
+        private final AtomicLong waiting = new AtomicLong(); //Sent while recording, not answered yet
+    }
+
+    private final ConcurrentHashMap<String, Samples> events = new ConcurrentHashMap<String, Samples>();
+    private volatile boolean recording;
+    private volatile long startNanos;
+    private volatile long stopNanos;
+
+    public void start() {
+        startNanos = System.nanoTime();
+        recording = true;
+    }
+
+    public void stop() {
+        recording = false;
+        stopNanos = System.nanoTime();
+    }
+
+    /**
+     * A request was sent, call {@link #answered} or {@link #failed} with the returned value when its answer arrives.
+     * Returns whether the request counts as waiting, which is only while recording.
+     */
+    public boolean sent(String event) {
+        if (!recording)
+            return false;
+        samples(event).waiting.incrementAndGet();
+        return true;
+    }
+
+    public void answered(String event, long startNanos, boolean waited) {
+        Samples samples = samples(event);
+        if (waited)
+            samples.waiting.decrementAndGet();
+        record(samples, System.nanoTime() - startNanos);
+    }
+
+    /** Answered with an error, counted apart from the latencies. */
+    public void failed(String event, boolean waited) {
+        Samples samples = samples(event);
+        if (waited)
+            samples.waiting.decrementAndGet();
+        if (!recording)
+            return;
+        synchronized (samples) {
+            samples.errors++;
+        }
+    }
+
+    /** A pushed event arrived, {@code nanos} after the change causing it. */
+    public void delivered(String event, long nanos) {
+        record(samples(event), nanos);
+    }
+
+    public void report(PrintStream out) {
+        double seconds = (stopNanos - startNanos) / 1e9;
+        out.printf("%-24s %10s %10s %10s %10s %10s %10s %10s %10s%n", "event", "count", "per sec", "errors",
+                "unanswered", "p50 ms", "p99 ms", "p999 ms", "max ms");
+        for (Map.Entry<String, Samples> event : new TreeMap<String, Samples>(events).entrySet()) {
+            Samples samples = event.getValue();
+            long[] sorted;
+            long errors;
+            synchronized (samples) {
+                sorted = Arrays.copyOf(samples.values, samples.count);
+                errors = samples.errors;
+            }
+            Arrays.sort(sorted);
+            out.printf("%-24s %10d %10.1f %10d %10d %10.2f %10.2f %10.2f %10.2f%n", event.getKey(), sorted.length,
+                    sorted.length / seconds, errors, samples.waiting.get(), quantile(sorted, 0.5), quantile(sorted, 0.99),
+                    quantile(sorted, 0.999), sorted.length == 0 ? 0 : sorted[sorted.length - 1] / 1e6);
+        }
+    }
+
+    private void record(Samples samples, long nanos) {
+        if (!recording)
+            return;
+        synchronized (samples) {
+            if (samples.count == samples.values.length)
+                samples.values = Arrays.copyOf(samples.values, samples.count * 2);
+            samples.values[samples.count++] = nanos;
+        }
+    }
+
+    private Samples samples(String event) {
+        Samples samples = events.get(event);
+        if (samples == null) {
+            Samples created = new Samples();
+            samples = events.putIfAbsent(event, created);
+            if (samples == null)
+                samples = created;
+        }
+        return samples;
+    }
+
+    /** The sample at the quantile, in milliseconds. */
+    private static double quantile(long[] sorted, double quantile) {
+        if (sorted.length == 0)
+            return 0;
+        int rank = (int) Math.ceil(quantile * sorted.length);
+        return sorted[Math.max(rank - 1, 0)] / 1e6;
+    }
+}
@@ -0,0 +1,218 @@
+package com.assistantindustries.bytewallet.loadtest;
+
+import io.socket.client.Ack;
+import io.socket.client.IO;
+import io.socket.client.Socket;
+import io.socket.emitter.Emitter;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One simulated API user: it logs in, takes fresh addresses and subscribes to them, then keeps polling balances and
+ * asking for payments to its own addresses. Every request is timed from its emit to its ack, and the pushed events
+ * caused by the backend are timed from the injection or block that caused them.
+ */
+public class LoadClient {
+
+    public static final String DELIVERED_TRANSACTION = "transactionReceived (push)";
+    public static final String DELIVERED_BLOCK = "newBlock (push)";
+
+    private final int id;
+    private final LoadTest.Options options;
+    private final InMemoryBackend backend;
+    private final LatencyRecorder recorder;
+    private final ScheduledExecutorService scheduler;
+    private final List<String> sharedAddresses;
+    private final Random random;
+    private final List<String> addresses = new ArrayList<String>();
+    private final List<ScheduledFuture<?>> tasks = new ArrayList<ScheduledFuture<?>>();
+
+    private Socket socket;
+    private CountDownLatch ready;
+
+    /**
+     * @param sharedAddresses where the client adds each address once subscribed, for the harness to pay into.
+     */
+    public LoadClient(int id, LoadTest.Options options, InMemoryBackend backend, LatencyRecorder recorder,
+                      ScheduledExecutorService scheduler, List<String> sharedAddresses) {
+        this.id = id;
+        this.options = options;
+        this.backend = backend;
+        this.recorder = recorder;
+        this.scheduler = scheduler;
+        this.sharedAddresses = sharedAddresses;
+        this.random = new Random(id);
+    }
+
+    /**
+     * Connects, logs in and subscribes to its addresses without waiting; the latch is counted down once it is done or
+     * has failed along the way.
+     */
+    public void start(String url, CountDownLatch ready) throws URISyntaxException {
+        this.ready = ready;
+        IO.Options opts = new IO.Options();
+        opts.forceNew = true;
+        opts.reconnection = false;
+        opts.transports = new String[]{"websocket"};
+        socket = IO.socket(url, opts);
+        socket.on(Socket.EVENT_CONNECT, new Emitter.Listener() {
+            public void call(Object... args) {
+                login();
+            }
+        });
+        socket.on(Socket.EVENT_CONNECT_ERROR, new Emitter.Listener() {
+            public void call(Object... args) {
+                System.err.println("Client " + id + " could not connect: " + (args.length > 0 ? args[0] : ""));
+                LoadClient.this.ready.countDown();
+            }
+        });
+        socket.on("transactionReceived", new Emitter.Listener() {
+            public void call(Object... args) {
+                Long injected = backend.injectedAt(((JSONObject) args[0]).optString("txid"));
+                if (injected != null)
+                    recorder.delivered(DELIVERED_TRANSACTION, System.nanoTime() - injected);
+            }
+        });
+        socket.on("newBlock", new Emitter.Listener() {
+            public void call(Object... args) {
+                Long mined = backend.minedAt(((JSONObject) args[0]).optInt("height"));
+                if (mined != null)
+                    recorder.delivered(DELIVERED_BLOCK, System.nanoTime() - mined);
+            }
+        });
+        socket.connect();
+    }
+
+    public void stop() {
+        for (ScheduledFuture<?> task : tasks) {
+            task.cancel(false);
+        }
+        if (socket != null)
+            socket.close();
+    }
+
+    private void login() {
+        JSONObject login = new JSONObject();
+        try {
+            login.put("user", options.username);
+            login.put("pass", options.password);
+        } catch (JSONException e) {
+            throw new RuntimeException(e);
+        }
+        request("login", login, new Ack() {
+            public void call(Object... args) {
+                if (Boolean.TRUE.equals(args[0])) {
+                    subscribeNext();
+                } else {
+                    System.err.println("Client " + id + " could not log in");
+                    ready.countDown();
+                }
+            }
+        });
+    }
+
+    /** Takes and subscribes to one address after the other, then starts the periodic requests. */
+    private void subscribeNext() {
+        if (addresses.size() == options.addressesPerClient) {
+            synchronized (sharedAddresses) {
+                sharedAddresses.addAll(addresses);
+            }
+            schedule();
+            ready.countDown();
+            return;
+        }
+        request("generateAddress", null, new Ack() {
+            public void call(Object... args) {
+                final String address = (String) args[0];
+                request("subscribeForAddress", address, new Ack() {
+                    public void call(Object... args) {
+                        if (Boolean.TRUE.equals(args[0])) {
+                            addresses.add(address);
+                            subscribeNext();
+                        } else {
+                            System.err.println("Client " + id + " could not subscribe: " + (args.length > 1 ? args[1] : ""));
+                            ready.countDown();
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private void schedule() {
+        // Spread over the period so the clients don't all ask at once.
+        tasks.add(scheduler.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                poll();
+            }
+        }, random.nextInt(options.pollMillis), options.pollMillis, TimeUnit.MILLISECONDS));
+        if (options.sendMillis > 0) {
+            tasks.add(scheduler.scheduleAtFixedRate(new Runnable() {
+                public void run() {
+                    send();
+                }
+            }, random.nextInt(options.sendMillis), options.sendMillis, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    /** Asks for the wallet balance or for the balance of one of its addresses, in turns. */
+    private void poll() {
+        if (random.nextBoolean()) {
+            request("getBalance", null, null);
+            return;
+        }
+        JSONObject query = new JSONObject();
+        try {
+            query.put("address", randomAddress());
+            query.put("minConfirmations", random.nextInt(3));
+        } catch (JSONException e) {
+            throw new RuntimeException(e);
+        }
+        request("getReceivedForAddress", query, null);
+    }
+
+    /** Asks for a payment to one of its own addresses, so the send also comes back as a received transaction. */
+    private void send() {
+        JSONObject payment = new JSONObject();
+        try {
+            payment.put("amount", options.sendSatoshis);
+            payment.put("address", randomAddress());
+        } catch (JSONException e) {
+            throw new RuntimeException(e);
+        }
+        request("sendTransaction", payment, null);
+    }
+
+    /**
+     * Emits the event, timing it until its ack. Events acked with false as their first value are counted as failed,
+     * after calling {@code then} if given.
+     */
+    private void request(final String event, Object data, final Ack then) {
+        final long start = System.nanoTime();
+        final boolean waited = recorder.sent(event);
+        Object[] args = data == null ? new Object[0] : new Object[]{data};
+        socket.emit(event, args, new Ack() {
+            public void call(Object... args) {
+                if (args.length > 0 && Boolean.FALSE.equals(args[0]))
+                    recorder.failed(event, waited);
+                else
+                    recorder.answered(event, start, waited);
+                if (then != null)
+                    then.call(args);
+            }
+        });
+    }
+
+    private String randomAddress() {
+        return addresses.get(random.nextInt(addresses.size()));
+    }
+}
@@ -0,0 +1,181 @@
+package com.assistantindustries.bytewallet.loadtest;
+
+import com.assistantindustries.bytewallet.Metrics;
+import com.assistantindustries.bytewallet.Settings;
+import com.assistantindustries.bytewallet.SocketInterface;
+import com.corundumstudio.socketio.AckMode;
+import com.corundumstudio.socketio.Configuration;
+import com.corundumstudio.socketio.SocketIOServer;
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Coin;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the socket.io API on an in-memory backend and drives it with thousands of clients from the same process, so
+ * its capacity can be measured on one machine without a bitcoin network. While the clients poll and send, the harness
+ * keeps paying their addresses and mining blocks, which fans out transactionReceived and newBlock events. At the end
+ * it prints the throughput and latency percentiles of every event, and writes the server's own metrics to a file.
+ * <p>
+ * Options are given as key=value arguments; anything else, such as blocks.debounceMillis or wallet.shards, is passed
+ * on to the server as if it were in its config.properties.
+ */
+public class LoadTest {
+
+    public static class Options {
+        final int clients;
+        final int durationSeconds;
+        final int addressesPerClient;
+        final int connectRate; //Clients started per second
+        final int pollMillis;
+        final int sendMillis; //0 for no sends
+        final long sendSatoshis;
+        final int txMillis; //0 for no injected transactions
+        final int blockMillis; //0 for no blocks
+        final int fundingCoins;
+        final int port;
+        final String metricsFile;
+        final String username = "loadtest";
+        final String password = "loadtest";
+
+        Options(Settings settings) {
+            this.clients = settings.getInt("clients", 1000);
+            this.durationSeconds = settings.getInt("durationSeconds", 60);
+            this.addressesPerClient = Math.max(settings.getInt("addressesPerClient", 5), 1);
+            this.connectRate = Math.max(settings.getInt("connectRate", 200), 1);
+            this.pollMillis = Math.max(settings.getInt("pollMillis", 1000), 1);
+            this.sendMillis = settings.getInt("sendMillis", 10000);
+            this.sendSatoshis = settings.getLong("sendSatoshis", 100000);
+            this.txMillis = settings.getInt("txMillis", 20);
+            this.blockMillis = settings.getInt("blockMillis", 10000);
+            // Each send spends a whole output until its change is mined, so enough for two block intervals of sends.
+            int sendsPerBlock = sendMillis > 0 && blockMillis > 0 ? (int) ((long) clients * blockMillis / sendMillis) : 0;
+            this.fundingCoins = settings.getInt("fundingCoins", Math.max(200, 2 * sendsPerBlock));
+            this.port = settings.getInt("port", 29092);
+            this.metricsFile = settings.getString("metricsFile", "loadtest-metrics.txt");
+        }
+    }
+
+    public static void main(String[] args) {
+        try {
+            run(args);
+        } catch (Exception e) {
+            // The backend's executors would otherwise keep the process alive.
+            e.printStackTrace();
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+
+    private static void run(String[] args) throws Exception {
+        Properties properties = new Properties();
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (separator < 0)
+                throw new IllegalArgumentException("Expected key=value, got " + arg);
+            properties.setProperty(arg.substring(0, separator), arg.substring(separator + 1));
+        }
+        Settings settings = new Settings(properties);
+        final Options options = new Options(settings);
+
+        int shardCount = Math.max(settings.getInt("wallet.shards", 1), 1);
+        System.out.println("Funding " + shardCount + " wallet shards");
+        final InMemoryBackend backend = new InMemoryBackend(shardCount, options.fundingCoins, settings);
+        Configuration config = new Configuration();
+        config.setHostname("127.0.0.1");
+        config.setPort(options.port);
+        config.setAckMode(AckMode.MANUAL);
+        // The connections of the last run may still hold the port.
+        config.getSocketConfig().setReuseAddress(true);
+        SocketInterface api = new SocketInterface(backend.getKit(), new SocketIOServer(config), backend.getShards(),
+                options.username, options.password, backend.getSyncStatus(), settings);
+        api.listenSync();
+
+        final LatencyRecorder recorder = new LatencyRecorder();
+        ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(Runtime.getRuntime().availableProcessors());
+        final List<String> addresses = new ArrayList<String>();
+        List<LoadClient> clients = new ArrayList<LoadClient>(options.clients);
+        CountDownLatch ready = new CountDownLatch(options.clients);
+        long rampStart = System.nanoTime();
+        for (int i = 0; i < options.clients; i++) {
+            LoadClient client = new LoadClient(i, options, backend, recorder, scheduler, addresses);
+            clients.add(client);
+            client.start("http://127.0.0.1:" + options.port, ready);
+            // Paced so the connections don't all land in the same instant.
+            long due = rampStart + TimeUnit.SECONDS.toNanos(i + 1) / options.connectRate;
+            long wait = due - System.nanoTime();
+            if (wait > 0)
+                TimeUnit.NANOSECONDS.sleep(wait);
+        }
+        if (!ready.await(Math.max(options.clients / options.connectRate, 1) * 10L, TimeUnit.SECONDS))
+            System.err.println(ready.getCount() + " clients still not subscribed, measuring anyway");
+        System.out.printf("%d clients subscribed to %d addresses in %.1f s%n", options.clients, addresses.size(),
+                (System.nanoTime() - rampStart) / 1e9);
+
+        final Random random = new Random(42);
+        if (options.txMillis > 0) {
+            scheduler.scheduleAtFixedRate(new Runnable() {
+                public void run() {
+                    backend.propagateContext();
+                    String address;
+                    synchronized (addresses) {
+                        if (addresses.isEmpty())
+                            return;
+                        address = addresses.get(random.nextInt(addresses.size()));
+                    }
+                    try {
+                        backend.inject(Address.fromBase58(backend.getKit().params(), address), Coin.CENT);
+                    } catch (RuntimeException e) {
+                        e.printStackTrace(); //A periodic task that throws is never run again
+                    }
+                }
+            }, 0, options.txMillis, TimeUnit.MILLISECONDS);
+        }
+        if (options.blockMillis > 0) {
+            scheduler.scheduleAtFixedRate(new Runnable() {
+                public void run() {
+                    backend.propagateContext();
+                    try {
+                        backend.mineBlock();
+                    } catch (RuntimeException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }, options.blockMillis, options.blockMillis, TimeUnit.MILLISECONDS);
+        }
+
+        System.out.println("Measuring for " + options.durationSeconds + " s");
+        recorder.start();
+        TimeUnit.SECONDS.sleep(options.durationSeconds);
+        recorder.stop();
+
+        scheduler.shutdownNow();
+        for (LoadClient client : clients) {
+            client.stop();
+        }
+        recorder.report(System.out);
+        writeMetrics(options.metricsFile);
+        System.out.println("Server metrics written to " + options.metricsFile);
+        api.stop();
+        backend.stop();
+    }
+
+    private static void writeMetrics(String file) throws IOException {
+        Writer out = new FileWriter(file);
+        try {
+            Metrics.DEFAULT.writePrometheus(out);
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,269 @@
+package com.assistantindustries.bytewallet;
+
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionConfidence;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.TransactionOutput;
+import org.bitcoinj.core.listeners.TransactionConfidenceEventListener;
+import org.bitcoinj.utils.Threading;
+import org.bitcoinj.wallet.Wallet;
+import org.bitcoinj.wallet.listeners.WalletCoinsReceivedEventListener;
+import org.bitcoinj.wallet.listeners.WalletCoinsSentEventListener;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Index of the wallet transactions touching each address, by paying to it or spending from it, newest first. It only
+ * keeps the hash and time of each transaction, and a page of history looks up just its own transactions in the wallet,
+ * so reading the history of an address never goes through the whole wallet. A page ends with a cursor from which the
+ * next one starts; the order is by the time the wallet first saw each transaction, which a reorganization doesn't
+ * change, so a cursor stays valid while new transactions arrive.
+ * <p>
+ * A transaction is dropped from the index once it is dead, double spent by one in the best chain. A reorganization
+ * moves the transactions of the abandoned blocks back to pending and reports those it double spends as dead, so it
+ * is handled the same way; a dead transaction coming back to life is filed again.
+ */
+public class AddressHistory implements WalletCoinsReceivedEventListener, WalletCoinsSentEventListener,
+        TransactionConfidenceEventListener {
+
+    public static class Page {
+        private final List<Transaction> transactions;
+        private final String cursor;
+
+        private Page(List<Transaction> transactions, String cursor) {
+            this.transactions = transactions;
+            this.cursor = cursor;
+        }
+
+        /** Transactions of the page, newest first. */
+        public List<Transaction> getTransactions() {
+            return transactions;
+        }
+
+        /** Where the next page starts, or null if this is the last one. */
+        public String getCursor() {
+            return cursor;
+        }
+    }
+
+    private static class Filed {
+        private final long time;
+        private final Set<Address> addresses = new HashSet<Address>(2);
+
+        private Filed(long time) {
+            this.time = time;
+        }
+    }
+
+    private static class Entry implements Comparable<Entry> {
+        private final long time;
+        private final Sha256Hash hash;
+
+        private Entry(long time, Sha256Hash hash) {
+            this.time = time;
+            this.hash = hash;
+        }
+
+        /** Newest first, ties broken by hash so every entry has its own position. */
+        public int compareTo(Entry other) {
+            if (time != other.time)
+                return time > other.time ? -1 : 1;
+            return hash.compareTo(other.hash);
+        }
+
+        private String toCursor() {
+            return time + "-" + hash;
+        }
+
+        private static Entry fromCursor(String cursor) {
+            int separator = cursor.indexOf('-');
+            if (separator < 0)
+                throw new IllegalArgumentException("Incorrect cursor");
+            return new Entry(Long.parseLong(cursor.substring(0, separator)), Sha256Hash.wrap(cursor.substring(separator + 1)));
+        }
+    }
+
+    private final Wallet wallet;
+    private final NetworkParameters params;
+    private final HashMap<Address, NavigableSet<Entry>> entriesByAddress;
+    private final HashMap<Sha256Hash, Filed> indexed; //Time and addresses each indexed transaction is filed under
+    private int size;
+
+    public AddressHistory(Wallet wallet) {
+        this.wallet = wallet;
+        this.params = wallet.getParams();
+        this.entriesByAddress = new HashMap<Address, NavigableSet<Entry>>();
+        this.indexed = new HashMap<Sha256Hash, Filed>();
+    }
+
+    /** Registers the index with the wallet and files the transactions it already has. */
+    public void attach() {
+        wallet.addCoinsReceivedEventListener(Threading.SAME_THREAD, this);
+        wallet.addCoinsSentEventListener(Threading.SAME_THREAD, this);
+        wallet.addTransactionConfidenceEventListener(Threading.SAME_THREAD, this);
+        for (Transaction tx : wallet.getTransactions(true)) {
+            if (!isDead(tx))
+                add(tx);
+        }
+    }
+
+    public void detach() {
+        wallet.removeCoinsReceivedEventListener(this);
+        wallet.removeCoinsSentEventListener(this);
+        wallet.removeTransactionConfidenceEventListener(this);
+    }
+
+    /**
+     * Returns up to {@code pageSize} transactions touching the address, starting after the cursor of the previous page
+     * or with the newest one if the cursor is null.
+     *
+     * @throws IllegalArgumentException if the cursor is not one returned by this index.
+     */
+    public Page getPage(Address address, String cursor, int pageSize) {
+        Entry after;
+        try {
+            after = cursor == null ? null : Entry.fromCursor(cursor);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Incorrect cursor", e);
+        }
+        List<Entry> entries = new ArrayList<Entry>(pageSize);
+        boolean more;
+        synchronized (this) {
+            NavigableSet<Entry> all = entriesByAddress.get(address);
+            if (all == null)
+                return new Page(new ArrayList<Transaction>(), null);
+            Iterator<Entry> it = (after == null ? all : all.tailSet(after, false)).iterator();
+            while (entries.size() < pageSize && it.hasNext()) {
+                entries.add(it.next());
+            }
+            more = it.hasNext();
+        }
+        // Looked up outside the index lock, the wallet takes its own lock and calls the index holding it.
+        List<Transaction> transactions = new ArrayList<Transaction>(entries.size());
+        for (Entry entry : entries) {
+            Transaction tx = wallet.getTransaction(entry.hash);
+            if (tx != null)
+                transactions.add(tx);
+        }
+        String next = more && !entries.isEmpty() ? entries.get(entries.size() - 1).toCursor() : null;
+        return new Page(transactions, next);
+    }
+
+    /** Number of address and transaction pairs indexed. */
+    public synchronized int size() {
+        return size;
+    }
+
+    public void onCoinsReceived(Wallet wallet, Transaction tx, Coin prevBalance, Coin newBalance) {
+        add(tx);
+    }
+
+    public void onCoinsSent(Wallet wallet, Transaction tx, Coin prevBalance, Coin newBalance) {
+        add(tx);
+    }
+
+    /** Called for every wallet transaction on every block, a hash lookup unless the transaction died or revived. */
+    public void onTransactionConfidenceChanged(Wallet wallet, Transaction tx) {
+        boolean filed;
+        synchronized (this) {
+            filed = indexed.containsKey(tx.getHash());
+        }
+        if (isDead(tx)) {
+            if (filed)
+                remove(tx.getHash());
+        } else if (!filed && wallet.getTransaction(tx.getHash()) != null) {
+            add(tx);
+        }
+    }
+
+    /** Value the transaction pays to the address. */
+    public static Coin getReceived(Transaction tx, Address address, NetworkParameters params) {
+        Coin received = Coin.ZERO;
+        for (TransactionOutput output : tx.getOutputs()) {
+            if (address.equals(AddressIndex.toAddress(output, params)))
+                received = received.add(output.getValue());
+        }
+        return received;
+    }
+
+    /** Value of the wallet outputs to the address that the transaction spends. */
+    public Coin getSent(Transaction tx, Address address) {
+        Coin sent = Coin.ZERO;
+        for (TransactionInput input : tx.getInputs()) {
+            TransactionOutput spent = getSpentWalletOutput(input);
+            if (spent != null && address.equals(AddressIndex.toAddress(spent, params)))
+                sent = sent.add(spent.getValue());
+        }
+        return sent;
+    }
+
+    /** The output the input spends if it is one of the wallet's or a watched one, otherwise null. */
+    private TransactionOutput getSpentWalletOutput(TransactionInput input) {
+        TransactionOutput spent = input.getConnectedOutput();
+        return spent != null && spent.isMineOrWatched(wallet) ? spent : null;
+    }
+
+    private static boolean isDead(Transaction tx) {
+        return tx.getConfidence().getConfidenceType() == TransactionConfidence.ConfidenceType.DEAD;
+    }
+
+    private void add(Transaction tx) {
+        ArrayList<Address> addresses = new ArrayList<Address>();
+        for (TransactionOutput output : tx.getOutputs()) {
+            Address address = AddressIndex.toAddress(output, params);
+            if (address != null && output.isMineOrWatched(wallet))
+                addresses.add(address);
+        }
+        for (TransactionInput input : tx.getInputs()) {
+            TransactionOutput spent = getSpentWalletOutput(input);
+            Address address = spent == null ? null : AddressIndex.toAddress(spent, params);
+            if (address != null)
+                addresses.add(address);
+        }
+        synchronized (this) {
+            // The same transaction may be reported again, as when it is both sent and received, and is filed once.
+            Filed filed = indexed.get(tx.getHash());
+            if (filed == null) {
+                filed = new Filed(tx.getUpdateTime().getTime());
+                indexed.put(tx.getHash(), filed);
+            }
+            Entry entry = new Entry(filed.time, tx.getHash());
+            for (Address address : addresses) {
+                NavigableSet<Entry> entries = entriesByAddress.get(address);
+                if (entries == null) {
+                    entries = new TreeSet<Entry>();
+                    entriesByAddress.put(address, entries);
+                }
+                if (entries.add(entry))
+                    size++;
+                filed.addresses.add(address);
+            }
+        }
+    }
+
+    private synchronized void remove(Sha256Hash hash) {
+        Filed filed = indexed.remove(hash);
+        if (filed == null)
+            return;
+        Entry entry = new Entry(filed.time, hash);
+        for (Address address : filed.addresses) {
+            NavigableSet<Entry> entries = entriesByAddress.get(address);
+            if (entries == null || !entries.remove(entry))
+                continue;
+            size--;
+            if (entries.isEmpty())
+                entriesByAddress.remove(address);
+        }
+    }
+}
@@ -0,0 +1,331 @@
+package com.assistantindustries.bytewallet;
+
+import org.bitcoinj.core.*;
+import org.bitcoinj.core.listeners.TransactionConfidenceEventListener;
+import org.bitcoinj.utils.Threading;
+import org.bitcoinj.wallet.Wallet;
+import org.bitcoinj.wallet.listeners.WalletCoinsReceivedEventListener;
+import org.bitcoinj.wallet.listeners.WalletCoinsSentEventListener;
+import org.bitcoinj.wallet.listeners.WalletReorganizeEventListener;
+
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Keeps the spendable outputs of a wallet grouped by the address they pay to, so the balance of a single address
+ * is a map lookup plus a sum over its own outputs instead of a scan of the whole wallet. The index is maintained
+ * incrementally from the wallet coin, confidence and reorganize events once {@link #attach()} has been called.
+ * Confirmation depths are not copied into the index: they are read from each output's transaction confidence when
+ * the balance is asked for, so a new block does not need to touch it.
+ * <p>
+ * {@link Listener}s are told about every address whose outputs, or the selectability of its outputs, may have changed.
+ */
+public class AddressIndex implements WalletCoinsReceivedEventListener, WalletCoinsSentEventListener,
+        TransactionConfidenceEventListener, WalletReorganizeEventListener {
+
+    public interface Listener {
+        void onAddressChanged(Address address);
+
+        /** The index was reloaded, any address may have changed. */
+        void onRebuilt();
+    }
+
+    private final Wallet wallet;
+    private final NetworkParameters params;
+    private final CopyOnWriteArrayList<Listener> listeners;
+
+    /** A transaction with outputs in the index, and the last selection state seen for it, see stateOf. */
+    private static class Tracked {
+        private int state;
+        private int outputs;
+    }
+
+    private HashMap<Address, Set<TransactionOutput>> outputsByAddress;
+    private HashMap<Sha256Hash, Tracked> tracked; //Only transactions with indexed outputs, so it can't outgrow the index
+    private volatile int size; //Outputs indexed, only changed holding the index lock
+
+    public AddressIndex(Wallet wallet) {
+        this.wallet = wallet;
+        this.params = wallet.getParams();
+        this.outputsByAddress = new HashMap<Address, Set<TransactionOutput>>();
+        this.tracked = new HashMap<Sha256Hash, Tracked>();
+        this.listeners = new CopyOnWriteArrayList<Listener>();
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Registers the index with the wallet and loads the current spend candidates. Listeners run on the thread that
+     * fires the event, so the index is never behind the wallet when a socket event reads it.
+     */
+    public void attach() {
+        wallet.addCoinsReceivedEventListener(Threading.SAME_THREAD, this);
+        wallet.addCoinsSentEventListener(Threading.SAME_THREAD, this);
+        wallet.addTransactionConfidenceEventListener(Threading.SAME_THREAD, this);
+        wallet.addReorganizeEventListener(Threading.SAME_THREAD, this);
+        rebuild();
+    }
+
+    public void detach() {
+        wallet.removeCoinsReceivedEventListener(this);
+        wallet.removeCoinsSentEventListener(this);
+        wallet.removeTransactionConfidenceEventListener(this);
+        wallet.removeReorganizeEventListener(this);
+    }
+
+    /**
+     * Returns the value of the outputs to the given address that {@link AddressReceived} would select with the same
+     * minimum depth, that is, the same result as {@code wallet.getBalance(new AddressReceived(address, minDepth))}.
+     */
+    public Coin getBalance(Address address, int minDepth) {
+        long total = 0;
+        synchronized (this) {
+            Set<TransactionOutput> outputs = outputsByAddress.get(address);
+            if (outputs == null)
+                return Coin.ZERO;
+            for (TransactionOutput output : outputs) {
+                Transaction tx = output.getParentTransaction();
+                if (tx.isMature() && StrategyCoinSelector.isSelectable(tx, minDepth))
+                    total += output.getValue().value;
+            }
+        }
+        return Coin.valueOf(total);
+    }
+
+    /** Returns {@link #getBalance(Address, int)} of every address, in satoshis, taking the index lock only once. */
+    public long[] getBalances(List<Address> addresses, int minDepth) {
+        long[] balances = new long[addresses.size()];
+        synchronized (this) {
+            for (int i = 0; i < balances.length; i++) {
+                Set<TransactionOutput> outputs = outputsByAddress.get(addresses.get(i));
+                if (outputs == null)
+                    continue;
+                for (TransactionOutput output : outputs) {
+                    Transaction tx = output.getParentTransaction();
+                    if (tx.isMature() && StrategyCoinSelector.isSelectable(tx, minDepth))
+                        balances[i] += output.getValue().value;
+                }
+            }
+        }
+        return balances;
+    }
+
+    /**
+     * Returns the chain height from which {@link #getBalance(Address, int)} will count an output it doesn't count now,
+     * because the output reaches the minimum depth or, for coinbases, maturity. Returns {@link Integer#MAX_VALUE} if
+     * no block can change the balance by itself.
+     */
+    public int getNextChangeHeight(Address address, int minDepth) {
+        int next = Integer.MAX_VALUE;
+        synchronized (this) {
+            Set<TransactionOutput> outputs = outputsByAddress.get(address);
+            if (outputs == null)
+                return next;
+            for (TransactionOutput output : outputs) {
+                Transaction tx = output.getParentTransaction();
+                TransactionConfidence confidence = tx.getConfidence();
+                if (confidence.getConfidenceType() != TransactionConfidence.ConfidenceType.BUILDING)
+                    continue;
+                int requiredDepth = minDepth;
+                if (tx.isCoinBase())
+                    requiredDepth = Math.max(requiredDepth, params.getSpendableCoinbaseDepth());
+                if (confidence.getDepthInBlocks() < requiredDepth)
+                    next = Math.min(next, confidence.getAppearedAtChainHeight() + requiredDepth - 1);
+            }
+        }
+        return next;
+    }
+
+    /**
+     * Returns the confirmation depths, out of the given ones, that an output to the address reaches as the chain grows
+     * from {@code fromHeight} to {@code toHeight}, that is, depths it had not reached at the first height but has at
+     * the second.
+     */
+    public SortedSet<Integer> getDepthsReached(Address address, int[] depths, int fromHeight, int toHeight) {
+        TreeSet<Integer> reached = new TreeSet<Integer>();
+        synchronized (this) {
+            Set<TransactionOutput> outputs = outputsByAddress.get(address);
+            if (outputs == null)
+                return reached;
+            for (TransactionOutput output : outputs) {
+                TransactionConfidence confidence = output.getParentTransaction().getConfidence();
+                if (confidence.getConfidenceType() != TransactionConfidence.ConfidenceType.BUILDING)
+                    continue;
+                int appearedAt = confidence.getAppearedAtChainHeight();
+                for (int depth : depths) {
+                    if (fromHeight - appearedAt + 1 < depth && depth <= toHeight - appearedAt + 1)
+                        reached.add(depth);
+                }
+            }
+        }
+        return reached;
+    }
+
+    /** Returns a copy of the unspent outputs currently indexed for the given address. */
+    public synchronized List<TransactionOutput> getOutputs(Address address) {
+        Set<TransactionOutput> outputs = outputsByAddress.get(address);
+        if (outputs == null)
+            return Collections.emptyList();
+        return new ArrayList<TransactionOutput>(outputs);
+    }
+
+    /** Outputs indexed, read without waiting for the index. */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Reloads the index from the wallet spend candidates. Outputs indexed by events that raced with the reload are
+     * kept as long as they are still spendable.
+     */
+    public void rebuild() {
+        List<TransactionOutput> candidates = wallet.calculateAllSpendCandidates(false, false);
+        synchronized (this) {
+            HashMap<Address, Set<TransactionOutput>> previous = outputsByAddress;
+            outputsByAddress = new HashMap<Address, Set<TransactionOutput>>();
+            tracked = new HashMap<Sha256Hash, Tracked>();
+            size = 0;
+            for (TransactionOutput output : candidates) {
+                update(output, true);
+            }
+            for (Set<TransactionOutput> outputs : previous.values()) {
+                for (TransactionOutput output : outputs) {
+                    update(output, true);
+                }
+            }
+        }
+        for (Listener listener : listeners) {
+            listener.onRebuilt();
+        }
+    }
+
+    public void onCoinsReceived(Wallet wallet, Transaction tx, Coin prevBalance, Coin newBalance) {
+        refresh(tx);
+    }
+
+    public void onCoinsSent(Wallet wallet, Transaction tx, Coin prevBalance, Coin newBalance) {
+        refresh(tx);
+    }
+
+    public void onTransactionConfidenceChanged(Wallet wallet, Transaction tx) {
+        int state = stateOf(tx.getConfidence());
+        TransactionConfidence.ConfidenceType type = tx.getConfidence().getConfidenceType();
+        boolean dead = type == TransactionConfidence.ConfidenceType.DEAD || type == TransactionConfidence.ConfidenceType.IN_CONFLICT;
+        synchronized (this) {
+            // Depth changes on every block for every building transaction, but only a change of type or of the
+            // broadcast of our own pending transactions changes which outputs are indexed or selectable. A transaction
+            // without indexed outputs, such as a fully spent one, only matters if it dies or has outputs to index.
+            Tracked seen = tracked.get(tx.getHash());
+            if (seen != null ? seen.state == state : !dead && !hasSpendableOutputs(tx))
+                return;
+        }
+        if (dead) {
+            // A dead transaction gives its inputs back to the wallet after they have been disconnected, so they can't
+            // be reached from it anymore.
+            rebuild();
+        } else {
+            refresh(tx);
+        }
+    }
+
+    public void onReorganize(Wallet wallet) {
+        rebuild();
+    }
+
+    private void refresh(Transaction tx) {
+        ArrayList<Address> changed = new ArrayList<Address>();
+        synchronized (this) {
+            for (TransactionOutput output : tx.getOutputs()) {
+                Address address = update(output, output.isMineOrWatched(wallet));
+                if (address != null)
+                    changed.add(address);
+            }
+            for (TransactionInput input : tx.getInputs()) {
+                TransactionOutput spent = input.getConnectedOutput();
+                if (spent == null)
+                    continue;
+                Address address = update(spent, spent.isMineOrWatched(wallet));
+                if (address != null)
+                    changed.add(address);
+            }
+        }
+        for (Listener listener : listeners) {
+            for (Address address : changed) {
+                listener.onAddressChanged(address);
+            }
+        }
+    }
+
+    /** Adds or removes the output, returning its address or null if it doesn't pay to one. */
+    private Address update(TransactionOutput output, boolean relevant) {
+        Transaction tx = output.getParentTransaction();
+        if (tx == null)
+            return null;
+        Address address = toAddress(output, params);
+        if (address == null)
+            return null;
+        TransactionConfidence.ConfidenceType type = tx.getConfidence().getConfidenceType();
+        boolean spendable = relevant && output.isAvailableForSpending()
+                && type != TransactionConfidence.ConfidenceType.DEAD
+                && type != TransactionConfidence.ConfidenceType.IN_CONFLICT;
+        Set<TransactionOutput> outputs = outputsByAddress.get(address);
+        Tracked seen = tracked.get(tx.getHash());
+        if (spendable) {
+            if (outputs == null) {
+                outputs = new HashSet<TransactionOutput>();
+                outputsByAddress.put(address, outputs);
+            }
+            if (outputs.add(output)) {
+                size++;
+                if (seen == null) {
+                    seen = new Tracked();
+                    tracked.put(tx.getHash(), seen);
+                }
+                seen.outputs++;
+            }
+        } else if (outputs != null && outputs.remove(output)) {
+            size--;
+            if (outputs.isEmpty())
+                outputsByAddress.remove(address);
+            if (seen != null && --seen.outputs == 0) {
+                tracked.remove(tx.getHash());
+                seen = null;
+            }
+        }
+        if (seen != null)
+            seen.state = stateOf(tx.getConfidence());
+        return address;
+    }
+
+    /** Whether the transaction has outputs of the wallet still to be spent, which the index would hold. */
+    private boolean hasSpendableOutputs(Transaction tx) {
+        for (TransactionOutput output : tx.getOutputs()) {
+            if (output.isAvailableForSpending() && output.isMineOrWatched(wallet) && toAddress(output, params) != null)
+                return true;
+        }
+        return false;
+    }
+
+    /** Everything of a confidence that {@link StrategyCoinSelector#isSelectable} looks at, except the depth. */
+    private static int stateOf(TransactionConfidence confidence) {
+        TransactionConfidence.ConfidenceType type = confidence.getConfidenceType();
+        boolean broadcastBySelf = type == TransactionConfidence.ConfidenceType.PENDING
+                && confidence.getSource() == TransactionConfidence.Source.SELF && confidence.numBroadcastPeers() > 1;
+        return type.getValue() * 2 + (broadcastBySelf ? 1 : 0);
+    }
+
+    /** Decodes the address an output pays to, or returns null if the output is not a pay-to-address script. */
+    public static Address toAddress(TransactionOutput output, NetworkParameters params) {
+        try {
+            return output.getScriptPubKey().getToAddress(params);
+        } catch (ScriptException e) {
+            return null;
+        }
+    }
+}
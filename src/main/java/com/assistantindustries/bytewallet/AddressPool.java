@@ -0,0 +1,190 @@
+package com.assistantindustries.bytewallet;
+
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.crypto.ChildNumber;
+import org.bitcoinj.crypto.DeterministicKey;
+import org.bitcoinj.crypto.HDKeyDerivation;
+import org.bitcoinj.wallet.DeterministicKeyChain;
+import org.bitcoinj.wallet.Wallet;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of receive keys derived ahead of time, so handing an address out is a queue poll instead of a key derivation on
+ * the caller's thread. When the pool drops below the low watermark it is refilled up to the high watermark in the
+ * background. The keys are derived from the wallet's receive chain without being marked issued; handing one out marks
+ * it issued in the wallet and records that in the journal, so the pooled keys lost on a restart leave no gap in the
+ * chain. Only keys within the wallet's lookahead are pooled, as those are the ones it already watches for payments.
+ * <p>
+ * Without a journal nothing would record the keys handed out before the wallet is next saved, so every address is
+ * then issued by the wallet itself, which saves it.
+ */
+public class AddressPool {
+
+    public interface Listener {
+        /** Keys were marked issued in the wallet, called before any of them is handed out. */
+        void onKeysIssued();
+    }
+
+    private final Wallet wallet;
+    private final Listener listener;
+    private final int lowWatermark;
+    private final int highWatermark;
+    private final ConcurrentLinkedQueue<DeterministicKey> keys;
+    private final AtomicInteger size;
+    private final AtomicBoolean refilling;
+    private final ExecutorService refiller;
+
+    private final Object deriving = new Object();
+    private DeterministicKey receiveParent; //Guarded by deriving, parent of the receive keys
+    private int nextChild; //Guarded by deriving, first receive key not derived yet
+
+    private final AtomicLong issued = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong refills = new AtomicLong();
+    private final AtomicLong derived = new AtomicLong();
+
+    public AddressPool(Wallet wallet, Settings settings) {
+        this(wallet, settings, null);
+    }
+
+    public AddressPool(Wallet wallet, Settings settings, Listener listener) {
+        this(wallet, settings.getInt("addressPool.lowWatermark", 20), settings.getInt("addressPool.highWatermark", 100),
+                listener);
+    }
+
+    public AddressPool(Wallet wallet, int lowWatermark, int highWatermark) {
+        this(wallet, lowWatermark, highWatermark, null);
+    }
+
+    /** @param listener records the keys issued, the pool is only used if there is one. */
+    public AddressPool(Wallet wallet, int lowWatermark, int highWatermark, Listener listener) {
+        this.wallet = wallet;
+        this.listener = listener;
+        this.lowWatermark = lowWatermark;
+        this.highWatermark = Math.max(lowWatermark, highWatermark);
+        this.keys = new ConcurrentLinkedQueue<DeterministicKey>();
+        this.size = new AtomicInteger();
+        this.refilling = new AtomicBoolean();
+        this.refiller = Executors.newSingleThreadExecutor();
+        maybeRefill();
+    }
+
+    /** Returns a fresh receive address, deriving one on the spot only if the pool has run dry. */
+    public Address take() {
+        Address address = listener != null ? issuePooled() : null;
+        if (address == null) {
+            address = wallet.freshReceiveAddress();
+            if (listener != null)
+                listener.onKeysIssued();
+        }
+        issued.incrementAndGet();
+        maybeRefill();
+        return address;
+    }
+
+    public int size() {
+        return size.get();
+    }
+
+    /** Addresses handed out. */
+    public long getIssued() {
+        return issued.get();
+    }
+
+    /** Addresses that had to be derived on the caller's thread because the pool was empty. */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /** Background batches derived. */
+    public long getRefills() {
+        return refills.get();
+    }
+
+    /** Addresses derived in background batches. */
+    public long getDerived() {
+        return derived.get();
+    }
+
+    public void stop() {
+        refiller.shutdownNow();
+    }
+
+    /** Marks the next pooled key issued and returns its address, or null if the wallet has to issue one itself. */
+    private Address issuePooled() {
+        DeterministicKeyChain chain = wallet.getActiveKeyChain();
+        DeterministicKey key;
+        do {
+            key = keys.poll();
+            if (key == null)
+                break;
+            size.decrementAndGet();
+        } while (key.getChildNumber().num() < chain.getIssuedExternalKeys()); //Issued by the wallet meanwhile
+        if (key == null) {
+            misses.incrementAndGet();
+            synchronized (deriving) {
+                key = keys.poll();
+                if (key != null)
+                    size.decrementAndGet();
+                else
+                    key = deriveNext(chain);
+            }
+            if (key == null)
+                return null;
+        }
+        // Null if it isn't a key of the wallet's active chain any more.
+        if (chain.markPubKeyAsUsed(key.getPubKey()) == null)
+            return null;
+        listener.onKeysIssued();
+        return key.toAddress(wallet.getParams());
+    }
+
+    /** Derives the next receive key not derived yet, or returns null if it is beyond the wallet's lookahead. */
+    private DeterministicKey deriveNext(DeterministicKeyChain chain) {
+        if (receiveParent == null)
+            receiveParent = HDKeyDerivation.deriveChildKey(wallet.getWatchingKey().dropPrivateBytes(), ChildNumber.ZERO);
+        int issuedKeys = chain.getIssuedExternalKeys();
+        nextChild = Math.max(nextChild, issuedKeys);
+        if (nextChild >= issuedKeys + chain.getLookaheadSize())
+            return null;
+        DeterministicKey key = HDKeyDerivation.deriveThisOrNextChildKey(receiveParent, nextChild);
+        nextChild = key.getChildNumber().num() + 1;
+        return key;
+    }
+
+    private void maybeRefill() {
+        if (listener == null || size.get() >= lowWatermark || !refilling.compareAndSet(false, true))
+            return;
+        refiller.execute(new Runnable() {
+            public void run() {
+                try {
+                    Context.propagate(wallet.getContext());
+                    DeterministicKeyChain chain = wallet.getActiveKeyChain();
+                    int added = 0;
+                    synchronized (deriving) {
+                        for (int missing = highWatermark - size.get(); added < missing; added++) {
+                            DeterministicKey key = deriveNext(chain);
+                            if (key == null)
+                                break;
+                            keys.add(key);
+                            size.incrementAndGet();
+                        }
+                    }
+                    derived.addAndGet(added);
+                    refills.incrementAndGet();
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                } finally {
+                    refilling.set(false);
+                }
+            }
+        });
+    }
+}
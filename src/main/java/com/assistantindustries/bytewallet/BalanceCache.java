@@ -0,0 +1,127 @@
+package com.assistantindustries.bytewallet;
+
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.wallet.Wallet;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Caches the wallet balance and the per-address balances answered from an {@link AddressIndex}, keyed by address and
+ * minimum confirmations. Entries are dropped when the index reports a change to their address, and a block only
+ * expires the entries whose balance it can change: each entry remembers the height at which one of its outputs
+ * reaches the required depth. The wallet balance is kept until the next block or change. At most
+ * {@code maxAddresses} addresses are kept, the least recently used is evicted.
+ */
+public class BalanceCache implements AddressIndex.Listener {
+
+    private static class CachedBalance {
+        private final Coin value;
+        private final int validUntilHeight;
+
+        private CachedBalance(Coin value, int validUntilHeight) {
+            this.value = value;
+            this.validUntilHeight = validUntilHeight;
+        }
+    }
+
+    /** The balances by address and minimum confirmations, evicting the least recently used address beyond the limit. */
+    private static class LruBalances extends LinkedHashMap<Address, Map<Integer, CachedBalance>> {
+        private static final long serialVersionUID = 1L;
+
+        private final int maxAddresses;
+
+        private LruBalances(int maxAddresses) {
+            super(16, 0.75f, true);
+            this.maxAddresses = maxAddresses;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Address, Map<Integer, CachedBalance>> eldest) {
+            return size() > maxAddresses;
+        }
+    }
+
+    private final Wallet wallet;
+    private final AddressIndex index;
+    private final LruBalances balances;
+
+    private CachedBalance walletBalance;
+    // Bumped on every invalidation, a balance computed while it changed is not stored as it may already be stale.
+    private long generation;
+
+    public BalanceCache(Wallet wallet, AddressIndex index, int maxAddresses) {
+        this.wallet = wallet;
+        this.index = index;
+        this.balances = new LruBalances(maxAddresses);
+    }
+
+    public void attach() {
+        index.addListener(this);
+    }
+
+    public void detach() {
+        index.removeListener(this);
+    }
+
+    public Coin getBalance(Address address, int minConfirmations) {
+        long startGeneration;
+        int height = wallet.getLastBlockSeenHeight();
+        synchronized (this) {
+            Map<Integer, CachedBalance> entries = balances.get(address);
+            CachedBalance cached = entries == null ? null : entries.get(minConfirmations);
+            if (cached != null && height < cached.validUntilHeight)
+                return cached.value;
+            startGeneration = generation;
+        }
+        int validUntilHeight = index.getNextChangeHeight(address, minConfirmations);
+        Coin value = index.getBalance(address, minConfirmations);
+        synchronized (this) {
+            if (generation == startGeneration) {
+                Map<Integer, CachedBalance> entries = balances.get(address);
+                if (entries == null) {
+                    entries = new HashMap<Integer, CachedBalance>(4);
+                    balances.put(address, entries);
+                }
+                entries.put(minConfirmations, new CachedBalance(value, validUntilHeight));
+            }
+        }
+        return value;
+    }
+
+    /** The wallet's available balance, as returned by {@link Wallet#getBalance()}. */
+    public Coin getWalletBalance() {
+        long startGeneration;
+        // Coinbase outputs mature with blocks, so the wallet balance is only valid for the height it was computed at.
+        int height = wallet.getLastBlockSeenHeight();
+        synchronized (this) {
+            if (walletBalance != null && height < walletBalance.validUntilHeight)
+                return walletBalance.value;
+            startGeneration = generation;
+        }
+        Coin value = wallet.getBalance();
+        synchronized (this) {
+            if (generation == startGeneration)
+                walletBalance = new CachedBalance(value, height + 1);
+        }
+        return value;
+    }
+
+    public synchronized void onAddressChanged(Address address) {
+        generation++;
+        walletBalance = null;
+        balances.remove(address);
+    }
+
+    public synchronized void onRebuilt() {
+        generation++;
+        walletBalance = null;
+        balances.clear();
+    }
+
+    public synchronized int size() {
+        return balances.size();
+    }
+}
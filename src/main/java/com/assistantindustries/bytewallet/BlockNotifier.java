@@ -0,0 +1,173 @@
+package com.assistantindustries.bytewallet;
+
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.VerificationException;
+import org.bitcoinj.core.listeners.NewBestBlockListener;
+import org.bitcoinj.wallet.Wallet;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coalesces new best blocks arriving within the debounce window, as during catch-up or a reorganization, into a single
+ * {@link Notification}. Besides the new head, a notification lists the subscribed addresses that have an output
+ * reaching one of the configured confirmation depths since the previous notification, so clients know what changed
+ * without asking for every balance again.
+ */
+public class BlockNotifier implements NewBestBlockListener {
+
+    public interface Listener {
+        void onBlocks(Notification notification);
+    }
+
+    public static class Notification {
+        private final int height;
+        private final Sha256Hash hash;
+        private final int blocks;
+        private final Map<Address, SortedSet<Integer>> depthsReached;
+
+        private Notification(int height, Sha256Hash hash, int blocks, Map<Address, SortedSet<Integer>> depthsReached) {
+            this.height = height;
+            this.hash = hash;
+            this.blocks = blocks;
+            this.depthsReached = depthsReached;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        public Sha256Hash getHash() {
+            return hash;
+        }
+
+        /** Number of best blocks coalesced into this notification. */
+        public int getBlocks() {
+            return blocks;
+        }
+
+        /** Subscribed addresses with outputs that reached new confirmation depths, and those depths. */
+        public Map<Address, SortedSet<Integer>> getDepthsReached() {
+            return depthsReached;
+        }
+    }
+
+    private final Wallet wallet;
+    private final List<AddressIndex> indexes;
+    private final SubscriptionRegistry subscriptions;
+    private final Listener listener;
+    private final int[] depths;
+    private final long debounceMillis;
+    private final ScheduledExecutorService scheduler;
+
+    private int notifiedHeight; //Chain height of the last notification
+    private StoredBlock head; //Newest block not notified yet, null if there is none
+    private int blocks;
+
+    public BlockNotifier(Wallet wallet, AddressIndex index, SubscriptionRegistry subscriptions, Listener listener,
+                         Settings settings) {
+        this(wallet, Collections.singletonList(index), subscriptions, listener, settings);
+    }
+
+    /** Notifier for wallets sharing the chain, the depths are looked up in the index of each one. */
+    public BlockNotifier(Wallet wallet, List<AddressIndex> indexes, SubscriptionRegistry subscriptions, Listener listener,
+                         Settings settings) {
+        this(wallet, indexes, subscriptions, listener, parseDepths(settings.getString("blocks.depths", "1,3,6")),
+                settings.getLong("blocks.debounceMillis", 1000L));
+    }
+
+    /** A debounce window of 0 notifies every block on the thread that reports it. */
+    public BlockNotifier(Wallet wallet, AddressIndex index, SubscriptionRegistry subscriptions, Listener listener,
+                         int[] depths, long debounceMillis) {
+        this(wallet, Collections.singletonList(index), subscriptions, listener, depths, debounceMillis);
+    }
+
+    public BlockNotifier(Wallet wallet, List<AddressIndex> indexes, SubscriptionRegistry subscriptions, Listener listener,
+                         int[] depths, long debounceMillis) {
+        this.wallet = wallet;
+        this.indexes = indexes;
+        this.subscriptions = subscriptions;
+        this.listener = listener;
+        this.depths = depths;
+        this.debounceMillis = debounceMillis;
+        this.scheduler = debounceMillis > 0 ? Executors.newSingleThreadScheduledExecutor() : null;
+        this.notifiedHeight = wallet.getLastBlockSeenHeight();
+    }
+
+    public void notifyNewBestBlock(StoredBlock block) throws VerificationException {
+        synchronized (this) {
+            boolean scheduled = head != null;
+            head = block;
+            blocks++;
+            if (scheduler != null) {
+                if (!scheduled) {
+                    scheduler.schedule(new Runnable() {
+                        public void run() {
+                            try {
+                                Context.propagate(wallet.getContext());
+                                flush();
+                            } catch (RuntimeException e) {
+                                e.printStackTrace();
+                            }
+                        }
+                    }, debounceMillis, TimeUnit.MILLISECONDS);
+                }
+                return;
+            }
+        }
+        flush();
+    }
+
+    /** Notifies the blocks received since the last notification, if any. */
+    public void flush() {
+        StoredBlock block;
+        int count;
+        int fromHeight;
+        synchronized (this) {
+            if (head == null)
+                return;
+            block = head;
+            count = blocks;
+            // After a reorganization the new head may be no higher than the old one, yet its last block is new.
+            fromHeight = Math.min(notifiedHeight, block.getHeight() - 1);
+            notifiedHeight = block.getHeight();
+            head = null;
+            blocks = 0;
+        }
+        LinkedHashMap<Address, SortedSet<Integer>> depthsReached = new LinkedHashMap<Address, SortedSet<Integer>>();
+        for (Address address : subscriptions.getAddresses()) {
+            SortedSet<Integer> reached = indexes.get(0).getDepthsReached(address, depths, fromHeight, block.getHeight());
+            for (AddressIndex index : indexes.subList(1, indexes.size())) {
+                reached.addAll(index.getDepthsReached(address, depths, fromHeight, block.getHeight()));
+            }
+            if (!reached.isEmpty())
+                depthsReached.put(address, reached);
+        }
+        listener.onBlocks(new Notification(block.getHeight(), block.getHeader().getHash(), count, depthsReached));
+    }
+
+    public void stop() {
+        if (scheduler != null)
+            scheduler.shutdownNow();
+    }
+
+    private static int[] parseDepths(String depths) {
+        String[] parts = depths.split(",");
+        int[] parsed = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            parsed[i] = Integer.parseInt(parts[i].trim());
+        }
+        Arrays.sort(parsed);
+        return parsed;
+    }
+}
@@ -0,0 +1,82 @@
+package com.assistantindustries.bytewallet;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.TransactionOutput;
+import org.bitcoinj.wallet.CoinSelection;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Searches for a set of candidates whose value matches the target exactly, or exceeds it by no more than the
+ * tolerance, so the transaction needs no change output. The selection reports the true value of the inputs; with a
+ * dust sized tolerance the {@link TransactionSender} leaves the excess to miners as fee instead of creating a change
+ * output for it. When no match is found within the search budget, the fallback strategy is used.
+ */
+public class BranchAndBoundStrategy implements CoinSelectionStrategy {
+
+    private final long tolerance;
+    private final int maxTries;
+    private final CoinSelectionStrategy fallback;
+
+    public BranchAndBoundStrategy(long tolerance, int maxTries, CoinSelectionStrategy fallback) {
+        this.tolerance = tolerance;
+        this.maxTries = maxTries;
+        this.fallback = fallback;
+    }
+
+    public CoinSelection select(SelectableOutput[] outputs, int count, long target) {
+        Arrays.sort(outputs, 0, count, SelectableOutput.BY_VALUE);
+        // remaining[i] is the value of every candidate from i on, so a branch that can't reach the target is cut.
+        long[] remaining = new long[count + 1];
+        for (int i = count - 1; i >= 0; i--) {
+            remaining[i] = remaining[i + 1] + outputs[i].getValue();
+        }
+        if (remaining[0] < target)
+            return fallback.select(outputs, count, target);
+
+        boolean[] included = new boolean[count];
+        boolean[] best = null;
+        long bestExcess = tolerance + 1;
+        long total = 0;
+        int depth = 0;
+        int tries = 0;
+        // Depth first walk over include/exclude decisions, trying to include each candidate before skipping it.
+        while (tries++ < maxTries) {
+            boolean backtrack = false;
+            if (total >= target) {
+                long excess = total - target;
+                if (excess < bestExcess) {
+                    bestExcess = excess;
+                    best = included.clone();
+                    if (excess == 0) break;
+                }
+                backtrack = true;
+            } else if (depth == count || total + remaining[depth] < target) {
+                backtrack = true;
+            }
+
+            if (backtrack) {
+                // Undo the deepest inclusion and explore the branch that skips it.
+                depth--;
+                while (depth >= 0 && !included[depth]) depth--;
+                if (depth < 0) break;
+                included[depth] = false;
+                total -= outputs[depth].getValue();
+                depth++;
+            } else {
+                included[depth] = true;
+                total += outputs[depth].getValue();
+                depth++;
+            }
+        }
+        if (best == null)
+            return fallback.select(outputs, count, target);
+
+        ArrayList<TransactionOutput> selected = new ArrayList<TransactionOutput>();
+        for (int i = 0; i < count; i++) {
+            if (best[i]) selected.add(outputs[i].getOutput());
+        }
+        return new CoinSelection(Coin.valueOf(target + bestExcess), selected);
+    }
+}
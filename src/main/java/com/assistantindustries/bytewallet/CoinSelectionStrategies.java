@@ -0,0 +1,49 @@
+package com.assistantindustries.bytewallet;
+
+import org.bitcoinj.core.Transaction;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registry of the coin selection strategies a request can ask for by name.
+ */
+public final class CoinSelectionStrategies {
+
+    /** Highest "coin*days" first, the order bitcoinj's default selector uses. */
+    public static final CoinSelectionStrategy COIN_DAYS = new GreedyStrategy(SelectableOutput.BY_COIN_DEPTH);
+    /** Highest value first, to spend as few inputs as possible. */
+    public static final CoinSelectionStrategy LARGEST_FIRST = new GreedyStrategy(SelectableOutput.BY_VALUE);
+    /** Exact match up to a dust sized excess, which goes to the fee, falling back to {@link #COIN_DAYS}. */
+    public static final CoinSelectionStrategy EXACT_MATCH =
+            new BranchAndBoundStrategy(Transaction.MIN_NONDUST_OUTPUT.value, 100000, COIN_DAYS);
+
+    private static final ConcurrentHashMap<String, CoinSelectionStrategy> strategies =
+            new ConcurrentHashMap<String, CoinSelectionStrategy>();
+
+    static {
+        register("coinDays", COIN_DAYS);
+        register("largestFirst", LARGEST_FIRST);
+        register("exactMatch", EXACT_MATCH);
+    }
+
+    private CoinSelectionStrategies() {
+    }
+
+    public static void register(String name, CoinSelectionStrategy strategy) {
+        strategies.put(name, strategy);
+    }
+
+    /**
+     * Returns the strategy registered under the given name, or {@link #COIN_DAYS} if no name is given.
+     *
+     * @throws IllegalArgumentException if no strategy is registered under that name.
+     */
+    public static CoinSelectionStrategy forName(String name) {
+        if (name == null || name.isEmpty())
+            return COIN_DAYS;
+        CoinSelectionStrategy strategy = strategies.get(name);
+        if (strategy == null)
+            throw new IllegalArgumentException("Unknown coin selection strategy: " + name);
+        return strategy;
+    }
+}
@@ -0,0 +1,16 @@
+package com.assistantindustries.bytewallet;
+
+import org.bitcoinj.wallet.CoinSelection;
+
+/**
+ * Decides which of the already filtered spend candidates pay for a target value. Implementations may reorder the
+ * given array in place, and must be stateless so one instance can serve concurrent requests.
+ */
+public interface CoinSelectionStrategy {
+
+    /**
+     * Selects from the first {@code count} entries of {@code outputs}. The value gathered may be lower than the target
+     * if the candidates are insufficient.
+     */
+    CoinSelection select(SelectableOutput[] outputs, int count, long target);
+}
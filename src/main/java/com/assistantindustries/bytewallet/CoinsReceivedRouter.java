@@ -0,0 +1,64 @@
+package com.assistantindustries.bytewallet;
+
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionOutput;
+import org.bitcoinj.wallet.Wallet;
+import org.bitcoinj.wallet.listeners.WalletCoinsReceivedEventListener;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Single wallet listener that reports received coins paying any of the registered addresses. Every output is decoded
+ * once and looked up in a hash set, so the cost of a received transaction depends on its outputs and not on how many
+ * addresses are being watched, and the listener hears about each transaction once with all its matching outputs.
+ */
+public class CoinsReceivedRouter implements WalletCoinsReceivedEventListener {
+
+    public interface Listener {
+        /** @param received value paid to each registered address by the transaction, in output order. */
+        void onTransactionReceived(Transaction transaction, Map<Address, Coin> received);
+    }
+
+    private final Listener listener;
+    private final Set<Address> addresses;
+
+    public CoinsReceivedRouter(Listener listener) {
+        this.listener = listener;
+        this.addresses = Collections.newSetFromMap(new ConcurrentHashMap<Address, Boolean>());
+    }
+
+    public void register(Address address) {
+        addresses.add(address);
+    }
+
+    public boolean unregister(Address address) {
+        return addresses.remove(address);
+    }
+
+    public int size() {
+        return addresses.size();
+    }
+
+    public void onCoinsReceived(Wallet wallet, Transaction transaction, Coin prevBalance, Coin newBalance) {
+        if (addresses.isEmpty())
+            return;
+        // Several outputs can pay the same address, they are added up.
+        LinkedHashMap<Address, Coin> received = new LinkedHashMap<Address, Coin>(4);
+        for (TransactionOutput output : transaction.getOutputs()) {
+            Address address = AddressIndex.toAddress(output, wallet.getParams());
+            // With several wallets on the chain, a transaction between them is reported by the one owning each output.
+            if (address == null || !addresses.contains(address) || !output.isMineOrWatched(wallet))
+                continue;
+            Coin value = received.get(address);
+            received.put(address, value == null ? output.getValue() : value.add(output.getValue()));
+        }
+        if (!received.isEmpty())
+            listener.onTransactionReceived(transaction, received);
+    }
+}
@@ -0,0 +1,33 @@
+package com.assistantindustries.bytewallet;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.TransactionOutput;
+import org.bitcoinj.wallet.CoinSelection;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Sorts the candidates with the given order and takes them until the target is reached. The excess, if any, will be
+ * change.
+ */
+public class GreedyStrategy implements CoinSelectionStrategy {
+
+    private final Comparator<SelectableOutput> order;
+
+    public GreedyStrategy(Comparator<SelectableOutput> order) {
+        this.order = order;
+    }
+
+    public CoinSelection select(SelectableOutput[] outputs, int count, long target) {
+        Arrays.sort(outputs, 0, count, order);
+        ArrayList<TransactionOutput> selected = new ArrayList<TransactionOutput>();
+        long total = 0;
+        for (int i = 0; i < count && total < target; i++) {
+            selected.add(outputs[i].getOutput());
+            total += outputs[i].getValue();
+        }
+        return new CoinSelection(Coin.valueOf(total), selected);
+    }
+}
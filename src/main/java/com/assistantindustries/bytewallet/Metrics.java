@@ -0,0 +1,327 @@
+package com.assistantindustries.bytewallet;
+
+import javax.management.*;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Registry of the server's counters, latency histograms and gauges. Recording is a few {@link LongAdder} increments,
+ * cheap enough to leave on, and everything is read only when scraped, through {@link #writePrometheus(Writer)} or as
+ * the attributes of a JMX bean.
+ */
+public class Metrics implements DynamicMBean {
+
+    public static final Metrics DEFAULT = new Metrics();
+
+    public interface GaugeSource {
+        long value();
+    }
+
+    private abstract static class Metric {
+        final String name;
+        final String labels; //Prometheus label set such as {event="login"}, or an empty string
+        final String help;
+
+        private Metric(String name, String labels, String help) {
+            this.name = name;
+            this.labels = labels;
+            this.help = help;
+        }
+
+        abstract String type();
+
+        abstract void writeSamples(Writer out) throws IOException;
+
+        abstract void addAttributes(Map<String, Object> attributes);
+
+        /** Attribute name prefix: the metric name followed by its label values. */
+        String attributeName() {
+            StringBuilder name = new StringBuilder(this.name);
+            for (String label : labels.isEmpty() ? new String[0] : labels.substring(1, labels.length() - 1).split(",")) {
+                name.append('.').append(label.substring(label.indexOf('=') + 2, label.length() - 1));
+            }
+            return name.toString();
+        }
+    }
+
+    public static class Counter extends Metric {
+        private final LongAdder count = new LongAdder();
+
+        private Counter(String name, String labels, String help) {
+            super(name, labels, help);
+        }
+
+        public void increment() {
+            count.increment();
+        }
+
+        public void add(long n) {
+            count.add(n);
+        }
+
+        public long get() {
+            return count.sum();
+        }
+
+        String type() {
+            return "counter";
+        }
+
+        void writeSamples(Writer out) throws IOException {
+            out.write(name + labels + " " + get() + "\n");
+        }
+
+        void addAttributes(Map<String, Object> attributes) {
+            attributes.put(attributeName(), get());
+        }
+    }
+
+    /**
+     * Latency histogram with a bucket per power of two nanoseconds. Percentiles read from it are the upper bound of
+     * the bucket they fall in, so they are at most twice the real value.
+     */
+    public static class Histogram extends Metric {
+        private static final int MIN_BUCKET = 10; //Up to 1.024 us
+        private static final int MAX_BUCKET = 36; //Up to 68.7 s
+
+        private final LongAdder[] buckets;
+        private final LongAdder sum = new LongAdder();
+
+        private Histogram(String name, String labels, String help) {
+            super(name, labels, help);
+            this.buckets = new LongAdder[65];
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        /** Records the time elapsed since {@code startNanos}, a value of {@link System#nanoTime()}. */
+        public void recordSince(long startNanos) {
+            record(System.nanoTime() - startNanos);
+        }
+
+        public void record(long nanos) {
+            if (nanos < 0)
+                nanos = 0;
+            buckets[64 - Long.numberOfLeadingZeros(nanos)].increment();
+            sum.add(nanos);
+        }
+
+        public long getCount() {
+            long count = 0;
+            for (LongAdder bucket : buckets) {
+                count += bucket.sum();
+            }
+            return count;
+        }
+
+        /** Returns the upper bound, in nanoseconds, of the bucket holding the given quantile, or 0 if empty. */
+        public long getQuantile(double quantile) {
+            long[] counts = new long[buckets.length];
+            long total = 0;
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = buckets[i].sum();
+                total += counts[i];
+            }
+            if (total == 0)
+                return 0;
+            long rank = (long) Math.ceil(quantile * total);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank)
+                    return i == 64 ? Long.MAX_VALUE : 1L << i;
+            }
+            return Long.MAX_VALUE;
+        }
+
+        String type() {
+            return "histogram";
+        }
+
+        void writeSamples(Writer out) throws IOException {
+            String prefix = labels.isEmpty() ? "{" : labels.substring(0, labels.length() - 1) + ",";
+            long cumulative = 0;
+            for (int i = 0; i <= MIN_BUCKET; i++) {
+                cumulative += buckets[i].sum();
+            }
+            for (int i = MIN_BUCKET; i <= MAX_BUCKET; i++) {
+                if (i > MIN_BUCKET)
+                    cumulative += buckets[i].sum();
+                out.write(name + "_bucket" + prefix + "le=\"" + (1L << i) / 1e9 + "\"} " + cumulative + "\n");
+            }
+            for (int i = MAX_BUCKET + 1; i < buckets.length; i++) {
+                cumulative += buckets[i].sum();
+            }
+            out.write(name + "_bucket" + prefix + "le=\"+Inf\"} " + cumulative + "\n");
+            out.write(name + "_sum" + labels + " " + sum.sum() / 1e9 + "\n");
+            out.write(name + "_count" + labels + " " + cumulative + "\n");
+        }
+
+        void addAttributes(Map<String, Object> attributes) {
+            String name = attributeName();
+            long count = getCount();
+            attributes.put(name + ".count", count);
+            attributes.put(name + ".meanMicros", count == 0 ? 0.0 : sum.sum() / 1e3 / count);
+            attributes.put(name + ".p50Micros", getQuantile(0.5) / 1e3);
+            attributes.put(name + ".p99Micros", getQuantile(0.99) / 1e3);
+            attributes.put(name + ".p999Micros", getQuantile(0.999) / 1e3);
+        }
+    }
+
+    /** A value read from its source when scraped, a gauge or a counter kept elsewhere. */
+    private static class Gauge extends Metric {
+        private final GaugeSource source;
+        private final String type;
+
+        private Gauge(String name, String labels, String help, GaugeSource source, String type) {
+            super(name, labels, help);
+            this.source = source;
+            this.type = type;
+        }
+
+        String type() {
+            return type;
+        }
+
+        void writeSamples(Writer out) throws IOException {
+            out.write(name + labels + " " + source.value() + "\n");
+        }
+
+        void addAttributes(Map<String, Object> attributes) {
+            attributes.put(attributeName(), source.value());
+        }
+    }
+
+    // Sorted by name and labels, so the series of a metric are exported together.
+    private final ConcurrentSkipListMap<String, Metric> metrics = new ConcurrentSkipListMap<String, Metric>();
+
+    public Counter counter(String name, String help) {
+        return counter(name, "", help);
+    }
+
+    /** Returns the counter with the name and labels, creating it if needed. */
+    public Counter counter(String name, String labels, String help) {
+        Metric metric = metrics.get(name + labels);
+        if (metric == null) {
+            Metric previous = metrics.putIfAbsent(name + labels, metric = new Counter(name, labels, help));
+            if (previous != null)
+                metric = previous;
+        }
+        return (Counter) metric;
+    }
+
+    public Histogram histogram(String name, String help) {
+        return histogram(name, "", help);
+    }
+
+    /** Returns the histogram with the name and labels, creating it if needed. */
+    public Histogram histogram(String name, String labels, String help) {
+        Metric metric = metrics.get(name + labels);
+        if (metric == null) {
+            Metric previous = metrics.putIfAbsent(name + labels, metric = new Histogram(name, labels, help));
+            if (previous != null)
+                metric = previous;
+        }
+        return (Histogram) metric;
+    }
+
+    /** Registers a gauge read from the source when scraped, replacing any gauge with the same name. */
+    public void gauge(String name, String help, GaugeSource source) {
+        gauge(name, "", help, source);
+    }
+
+    /** Registers one series of a gauge, with the given labels, replacing any with the same name and labels. */
+    public void gauge(String name, String labels, String help, GaugeSource source) {
+        metrics.put(name + labels, new Gauge(name, labels, help, source, "gauge"));
+    }
+
+    /**
+     * Registers a counter read from the source when scraped, for a count kept elsewhere that never goes down,
+     * replacing any metric with the same name.
+     */
+    public void counter(String name, String help, GaugeSource source) {
+        metrics.put(name, new Gauge(name, "", help, source, "counter"));
+    }
+
+    public void remove(String name) {
+        metrics.remove(name);
+    }
+
+    /** Formats a single label set, such as {event="login"}. */
+    public static String label(String name, String value) {
+        return "{" + name + "=\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"}";
+    }
+
+    /** Writes every metric in the Prometheus text exposition format. */
+    public void writePrometheus(Writer out) throws IOException {
+        String lastName = null;
+        for (Metric metric : metrics.values()) {
+            if (!metric.name.equals(lastName)) {
+                out.write("# HELP " + metric.name + " " + metric.help + "\n");
+                out.write("# TYPE " + metric.name + " " + metric.type() + "\n");
+                lastName = metric.name;
+            }
+            metric.writeSamples(out);
+        }
+    }
+
+    /** Registers this registry with the platform MBean server under the given name. */
+    public void registerMBean(String objectName) throws JMException {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(objectName));
+    }
+
+    private Map<String, Object> attributes() {
+        Map<String, Object> attributes = new LinkedHashMap<String, Object>();
+        for (Metric metric : metrics.values()) {
+            metric.addAttributes(attributes);
+        }
+        return attributes;
+    }
+
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Map<String, Object> attributes = attributes();
+        if (!attributes.containsKey(attribute))
+            throw new AttributeNotFoundException(attribute);
+        return attributes.get(attribute);
+    }
+
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Metrics are read only");
+    }
+
+    public AttributeList getAttributes(String[] names) {
+        Map<String, Object> attributes = attributes();
+        AttributeList list = new AttributeList();
+        for (String name : names) {
+            if (attributes.containsKey(name))
+                list.add(new Attribute(name, attributes.get(name)));
+        }
+        return list;
+    }
+
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    public Object invoke(String actionName, Object[] params, String[] signature) throws MBeanException {
+        throw new MBeanException(new UnsupportedOperationException(actionName));
+    }
+
+    public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> infos = new ArrayList<MBeanAttributeInfo>();
+        for (Map.Entry<String, Object> attribute : attributes().entrySet()) {
+            infos.add(new MBeanAttributeInfo(attribute.getKey(), attribute.getValue().getClass().getName(),
+                    attribute.getKey(), true, false, false));
+        }
+        return new MBeanInfo(getClass().getName(), "ByteWallet server metrics",
+                infos.toArray(new MBeanAttributeInfo[infos.size()]), null, null, null);
+    }
+}
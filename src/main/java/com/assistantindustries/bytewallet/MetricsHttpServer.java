@@ -0,0 +1,50 @@
+package com.assistantindustries.bytewallet;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+
+/**
+ * Serves the metrics in the Prometheus text format at {@code /metrics}. It only listens on the loopback interface;
+ * remote scrapers are expected to go through an agent or tunnel on the same host.
+ */
+public class MetricsHttpServer {
+
+    private final HttpServer server;
+
+    public MetricsHttpServer(final Metrics metrics, int port) throws IOException {
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+        server.createContext("/metrics", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                ByteArrayOutputStream body = new ByteArrayOutputStream(16384);
+                Writer writer = new OutputStreamWriter(body, Charset.forName("UTF-8"));
+                metrics.writePrometheus(writer);
+                writer.flush();
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.size());
+                OutputStream out = exchange.getResponseBody();
+                try {
+                    body.writeTo(out);
+                } finally {
+                    out.close();
+                }
+            }
+        });
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public void stop() {
+        server.stop(0);
+    }
+}
@@ -0,0 +1,309 @@
+package com.assistantindustries.bytewallet;
+
+import com.corundumstudio.socketio.SocketIOClient;
+import com.corundumstudio.socketio.handler.ClientHead;
+import com.corundumstudio.socketio.protocol.Packet;
+import com.corundumstudio.socketio.protocol.PacketType;
+import com.corundumstudio.socketio.transport.NamespaceClient;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded outbound queue per client for the events pushed to it. At most {@code maxInFlight} events per client are
+ * handed to Netty and not yet written to the socket; the rest wait in a queue of at most {@code maxQueued} events, so a
+ * slow or stalled client can't make the server buffer without limit. When a client's queue is full the
+ * {@link OverflowPolicy} decides what gives. Only {@link Coalescible} events, which a later one makes up for, are ever
+ * merged or dropped; any other event is answering a request or reporting something only once, so when there is no
+ * Coalescible event to make room for it the client is disconnected, whatever the policy.
+ */
+public class OutboundQueues {
+
+    public enum OverflowPolicy {
+        /**
+         * The newer event is merged into a queued {@link Coalescible} event with the same key, which keeps its place
+         * in the queue. Without one, the oldest Coalescible event is dropped.
+         */
+        COALESCE,
+        /** The oldest queued {@link Coalescible} event is dropped. */
+        DROP_OLDEST,
+        /** The client is disconnected. */
+        DISCONNECT
+    }
+
+    /**
+     * Event data that a newer event of the same name and key can supersede while it is still queued, and that may be
+     * dropped when the queue is full.
+     */
+    public interface Coalescible {
+        String coalesceKey();
+
+        /** Takes whatever the newer event needs from an older one it replaces. */
+        void absorb(Object older);
+    }
+
+    private static class Event {
+        private final String name;
+        private Object data;
+
+        private Event(String name, Object data) {
+            this.name = name;
+            this.data = data;
+        }
+    }
+
+    private static class Outbox {
+        private final SocketIOClient client;
+        private final ArrayDeque<Event> queue;
+        private int inFlight; //Events handed to Netty and not written yet
+        private int unconfirmed; //Part of inFlight queued for a polling transport, with no write to wait for
+
+        private Outbox(SocketIOClient client) {
+            this.client = client;
+            this.queue = new ArrayDeque<Event>();
+        }
+    }
+
+    private final int maxQueued;
+    private final int maxInFlight;
+    private final OverflowPolicy policy;
+    private final ConcurrentHashMap<UUID, Outbox> outboxes;
+    private final ScheduledExecutorService poller;
+
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong disconnected = new AtomicLong();
+
+    public OutboundQueues(Settings settings) {
+        this(settings.getInt("outbound.maxQueued", 256), settings.getInt("outbound.maxInFlight", 16),
+                parsePolicy(settings.getString("outbound.overflowPolicy", "coalesce")));
+    }
+
+    public OutboundQueues(int maxQueued, int maxInFlight, OverflowPolicy policy) {
+        this.maxQueued = maxQueued;
+        this.maxInFlight = maxInFlight;
+        this.policy = policy;
+        this.outboxes = new ConcurrentHashMap<UUID, Outbox>();
+        this.poller = Executors.newSingleThreadScheduledExecutor();
+        poller.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    confirmPolled();
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+        }, 100, 100, TimeUnit.MILLISECONDS);
+    }
+
+    /** Queues the event for the client, sending it right away if the client is keeping up. */
+    public void send(SocketIOClient client, String name, Object data) {
+        Outbox outbox = outboxes.get(client.getSessionId());
+        if (outbox == null) {
+            if (!isConnected(client))
+                return;
+            Outbox created = new Outbox(client);
+            outbox = outboxes.putIfAbsent(client.getSessionId(), created);
+            if (outbox == null) {
+                outbox = created;
+                // A client is marked disconnected before its outbox is removed, so one created too late is seen here.
+                if (!isConnected(client)) {
+                    outboxes.remove(client.getSessionId(), created);
+                    return;
+                }
+            }
+        }
+        synchronized (outbox) {
+            if (outbox.queue.size() >= maxQueued && !makeRoom(outbox, name, data))
+                return;
+            outbox.queue.add(new Event(name, data));
+            pump(outbox);
+        }
+    }
+
+    /** Forgets the client's queue, to be called when it disconnects. */
+    public void remove(UUID session) {
+        outboxes.remove(session);
+    }
+
+    /** Events waiting in the client's queue, not counting those already handed to Netty. */
+    public int getQueueDepth(UUID session) {
+        Outbox outbox = outboxes.get(session);
+        if (outbox == null)
+            return 0;
+        synchronized (outbox) {
+            return outbox.queue.size();
+        }
+    }
+
+    /** Number of clients with a queue of at most {@code depth} events. */
+    public int countQueuesUpTo(int depth) {
+        int count = 0;
+        for (Outbox outbox : outboxes.values()) {
+            synchronized (outbox) {
+                if (outbox.queue.size() <= depth)
+                    count++;
+            }
+        }
+        return count;
+    }
+
+    /** {@link #getQueueDepth(UUID)} of every client with a queue. */
+    public Map<UUID, Integer> getQueueDepths() {
+        HashMap<UUID, Integer> depths = new HashMap<UUID, Integer>();
+        for (Map.Entry<UUID, Outbox> entry : outboxes.entrySet()) {
+            synchronized (entry.getValue()) {
+                depths.put(entry.getKey(), entry.getValue().queue.size());
+            }
+        }
+        return depths;
+    }
+
+    /** Events merged with a newer one instead of being sent on their own. */
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    /** Coalescible events dropped because a queue was full. */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /** Clients disconnected because their queue was full and the policy, or the events queued, left nothing to drop. */
+    public long getDisconnected() {
+        return disconnected.get();
+    }
+
+    public void stop() {
+        poller.shutdownNow();
+    }
+
+    /**
+     * Applies the overflow policy to a full queue. Returns true if the event is to be queued still, false if it was
+     * merged into a queued one or dropped, or the client was disconnected. Called holding the outbox lock.
+     */
+    private boolean makeRoom(Outbox outbox, String name, Object data) {
+        if (policy == OverflowPolicy.DISCONNECT) {
+            disconnect(outbox);
+            return false;
+        }
+        if (policy == OverflowPolicy.COALESCE && data instanceof Coalescible && coalesce(outbox, name, (Coalescible) data))
+            return false;
+        Iterator<Event> it = outbox.queue.iterator();
+        while (it.hasNext()) {
+            if (it.next().data instanceof Coalescible) {
+                it.remove();
+                dropped.incrementAndGet();
+                return true;
+            }
+        }
+        if (data instanceof Coalescible) {
+            dropped.incrementAndGet();
+            return false;
+        }
+        // Nothing may be dropped, and queueing beyond the limit would let a stalled client grow its queue forever.
+        disconnect(outbox);
+        return false;
+    }
+
+    /** Called holding the outbox lock. */
+    private void disconnect(Outbox outbox) {
+        outboxes.remove(outbox.client.getSessionId(), outbox);
+        outbox.queue.clear();
+        disconnected.incrementAndGet();
+        outbox.client.disconnect();
+    }
+
+    /** Merges the event into a queued one with the same name and key, which keeps its place in the queue. */
+    private boolean coalesce(Outbox outbox, String name, Coalescible data) {
+        String key = data.coalesceKey();
+        for (Event queued : outbox.queue) {
+            if (queued.name.equals(name) && queued.data instanceof Coalescible
+                    && key.equals(((Coalescible) queued.data).coalesceKey())) {
+                data.absorb(queued.data);
+                queued.data = data;
+                coalesced.incrementAndGet();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** False once the client has begun disconnecting, which is before the disconnect listeners are told. */
+    private static boolean isConnected(SocketIOClient client) {
+        if (!(client instanceof NamespaceClient))
+            return client.isChannelOpen();
+        NamespaceClient namespaceClient = (NamespaceClient) client;
+        ClientHead head = namespaceClient.getBaseClient();
+        return head.isConnected() && head.getChildClient(namespaceClient.getNamespace()) == namespaceClient;
+    }
+
+    /** Hands queued events to Netty while the client has room in flight. Called holding the outbox lock. */
+    private void pump(final Outbox outbox) {
+        while (outbox.inFlight < maxInFlight && !outbox.queue.isEmpty()) {
+            Event event = outbox.queue.poll();
+            if (!(outbox.client instanceof NamespaceClient)) {
+                outbox.client.sendEvent(event.name, event.data);
+                continue;
+            }
+            // SocketIOClient.sendEvent doesn't return the write, so the packet is built and sent the same way here.
+            NamespaceClient client = (NamespaceClient) outbox.client;
+            ClientHead head = client.getBaseClient();
+            if (!head.isConnected())
+                continue;
+            Packet packet = new Packet(PacketType.MESSAGE);
+            packet.setSubType(PacketType.EVENT);
+            packet.setName(event.name);
+            packet.setData(Arrays.asList(event.data));
+            packet.setNsp(client.getNamespace().getName());
+            ChannelFuture write = head.send(packet);
+            outbox.inFlight++;
+            if (write == null) {
+                // Queued for a polling transport, it leaves with the client's next request.
+                outbox.unconfirmed++;
+                continue;
+            }
+            write.addListener(new ChannelFutureListener() {
+                public void operationComplete(ChannelFuture future) {
+                    synchronized (outbox) {
+                        outbox.inFlight--;
+                        pump(outbox);
+                    }
+                }
+            });
+        }
+    }
+
+    /** Events queued for a polling transport are in flight until the client has taken every queued packet. */
+    private void confirmPolled() {
+        for (Outbox outbox : outboxes.values()) {
+            synchronized (outbox) {
+                if (outbox.unconfirmed == 0)
+                    continue;
+                ClientHead head = ((NamespaceClient) outbox.client).getBaseClient();
+                if (!head.getPacketsQueue(head.getCurrentTransport()).isEmpty())
+                    continue;
+                outbox.inFlight -= outbox.unconfirmed;
+                outbox.unconfirmed = 0;
+                pump(outbox);
+            }
+        }
+    }
+
+    private static OverflowPolicy parsePolicy(String policy) {
+        if (policy.equalsIgnoreCase("dropOldest"))
+            return OverflowPolicy.DROP_OLDEST;
+        return OverflowPolicy.valueOf(policy.toUpperCase());
+    }
+}
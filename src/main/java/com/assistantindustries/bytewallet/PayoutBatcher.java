@@ -0,0 +1,219 @@
+package com.assistantindustries.bytewallet;
+
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionOutput;
+import org.bitcoinj.wallet.SendRequest;
+import org.bitcoinj.wallet.Wallet;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Turns payouts into send requests for the {@link TransactionSender}. When batching is enabled, payouts arriving within
+ * the batch window, or until the batch holds {@code maxOutputs} outputs, are merged into a single transaction with one
+ * output per payment and a single change output. Each payout is still answered on its own callback, all of them with
+ * the shared transaction. Payouts with an amount that can't be sent are rejected on submission, so they never fail
+ * the batch they would have joined.
+ */
+public class PayoutBatcher {
+
+    /** One output of a payout. */
+    public static class Payment {
+        private final Address address;
+        private final Coin value;
+
+        public Payment(Address address, Coin value) {
+            this.address = address;
+            this.value = value;
+        }
+
+        public Address getAddress() {
+            return address;
+        }
+
+        public Coin getValue() {
+            return value;
+        }
+    }
+
+    private static class Payout {
+        private final List<Payment> payments;
+        private final CoinSelectionStrategy strategy;
+        private final TransactionSender.Callback callback;
+
+        private Payout(List<Payment> payments, CoinSelectionStrategy strategy, TransactionSender.Callback callback) {
+            this.payments = payments;
+            this.strategy = strategy;
+            this.callback = callback;
+        }
+    }
+
+    private final Wallet wallet;
+    private final TransactionSender sender;
+    private final AddressPool addressPool;
+    private final Coin feePerKb;
+    private final boolean enabled;
+    private final long windowMillis;
+    private final int maxOutputs;
+    private final ScheduledExecutorService scheduler;
+
+    private ArrayList<Payout> batch;
+    private int batchOutputs;
+    private ScheduledFuture<?> scheduledFlush;
+
+    public PayoutBatcher(Wallet wallet, TransactionSender sender, AddressPool addressPool, Settings settings) {
+        this(wallet, sender, addressPool, Coin.valueOf(settings.getLong("send.feePerKb", 15000L)),
+                settings.getBoolean("send.batch.enabled", false), settings.getLong("send.batch.windowMillis", 2000L),
+                settings.getInt("send.batch.maxOutputs", 50));
+    }
+
+    public PayoutBatcher(Wallet wallet, TransactionSender sender, AddressPool addressPool, Coin feePerKb, boolean enabled,
+                         long windowMillis, int maxOutputs) {
+        this.wallet = wallet;
+        this.sender = sender;
+        this.addressPool = addressPool;
+        this.feePerKb = feePerKb;
+        this.enabled = enabled;
+        this.windowMillis = windowMillis;
+        this.maxOutputs = maxOutputs;
+        this.scheduler = enabled ? Executors.newSingleThreadScheduledExecutor() : null;
+        this.batch = new ArrayList<Payout>();
+    }
+
+    /**
+     * Why the payments can't be sent, or null if they can: every amount must be positive and above the dust
+     * threshold.
+     */
+    public static String checkPayments(NetworkParameters params, List<Payment> payments) {
+        for (Payment payment : payments) {
+            if (payment.getValue().signum() <= 0)
+                return "Amount must be positive";
+            if (new TransactionOutput(params, null, payment.getValue(), payment.getAddress()).isDust())
+                return "Amount below the dust threshold";
+        }
+        return null;
+    }
+
+    /**
+     * Sends the payments, on their own or as part of the next batch. A batch is funded with the coin selection
+     * strategy of its first payout.
+     */
+    public void submit(List<Payment> payments, CoinSelectionStrategy strategy, TransactionSender.Callback callback) {
+        String invalid = checkPayments(wallet.getParams(), payments);
+        if (invalid != null) {
+            callback.onFailure(invalid);
+            return;
+        }
+        Payout payout = new Payout(payments, strategy, callback);
+        if (!enabled) {
+            send(newSingleBatch(payout));
+            return;
+        }
+        ArrayList<List<Payout>> ready = new ArrayList<List<Payout>>(2);
+        synchronized (this) {
+            if (batchOutputs > 0 && batchOutputs + payments.size() > maxOutputs)
+                ready.add(takeBatch());
+            batch.add(payout);
+            batchOutputs += payments.size();
+            if (batchOutputs >= maxOutputs) {
+                ready.add(takeBatch());
+            } else if (scheduledFlush == null) {
+                scheduledFlush = scheduler.schedule(new Runnable() {
+                    public void run() {
+                        Context.propagate(wallet.getContext());
+                        flush();
+                    }
+                }, windowMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+        for (List<Payout> payouts : ready) {
+            send(payouts);
+        }
+    }
+
+    /** Sends whatever is waiting in the current batch. */
+    public void flush() {
+        ArrayList<Payout> taken;
+        synchronized (this) {
+            taken = takeBatch();
+        }
+        if (!taken.isEmpty())
+            send(taken);
+    }
+
+    public void stop() {
+        if (scheduler != null) {
+            scheduler.shutdown();
+            flush();
+        }
+    }
+
+    private ArrayList<Payout> takeBatch() {
+        ArrayList<Payout> taken = batch;
+        batch = new ArrayList<Payout>();
+        batchOutputs = 0;
+        if (scheduledFlush != null) {
+            scheduledFlush.cancel(false);
+            scheduledFlush = null;
+        }
+        return taken;
+    }
+
+    private void send(final List<Payout> payouts) {
+        Transaction tx = new Transaction(wallet.getParams());
+        for (Payout payout : payouts) {
+            for (Payment payment : payout.payments) {
+                tx.addOutput(payment.getValue(), payment.getAddress());
+            }
+        }
+        SendRequest request = SendRequest.forTx(tx);
+        request.feePerKb = feePerKb;
+        request.coinSelector = new StrategyCoinSelector(payouts.get(0).strategy, 1);
+        request.changeAddress = addressPool.take(); //Generate change address
+        // With the reference minimum fee, bitcoinj answers a dust sized change by selecting coins again until the
+        // change is large enough, so an exact match would never be used. The sender leaves dust change out itself.
+        request.ensureMinRequiredFee = false;
+        sender.send(request, new TransactionSender.Callback() {
+            public void onSuccess(Transaction transaction) {
+                for (Payout payout : payouts) {
+                    payout.callback.onSuccess(transaction);
+                }
+            }
+
+            public void onFailure(String errorDescription) {
+                if (payouts.size() > 1 && (TransactionSender.NOT_ENOUGH_MONEY.equals(errorDescription)
+                        || TransactionSender.COULD_NOT_CREATE.equals(errorDescription))) {
+                    // The batch as a whole can't be created, but some of its payouts may still be. Failures after
+                    // the transaction was committed aren't retried, it would pay twice.
+                    for (Payout payout : payouts) {
+                        send(newSingleBatch(payout));
+                    }
+                    return;
+                }
+                for (Payout payout : payouts) {
+                    payout.callback.onFailure(errorDescription);
+                }
+            }
+
+            public void onBroadcastFailed(Transaction transaction, String errorDescription) {
+                for (Payout payout : payouts) {
+                    payout.callback.onBroadcastFailed(transaction, errorDescription);
+                }
+            }
+        });
+    }
+
+    private static List<Payout> newSingleBatch(Payout payout) {
+        ArrayList<Payout> single = new ArrayList<Payout>(1);
+        single.add(payout);
+        return single;
+    }
+}
@@ -0,0 +1,84 @@
+package com.assistantindustries.bytewallet;
+
+import org.bitcoinj.core.TransactionConfidence;
+import org.bitcoinj.core.TransactionOutput;
+
+import java.util.Comparator;
+
+/**
+ * A spend candidate together with the primitive keys used to order it. The keys are computed once when a selection
+ * starts, so sorting neither reads the transaction confidence again nor allocates anything per comparison.
+ */
+public final class SelectableOutput {
+
+    /** Highest "coin*days" first, then highest value, then lowest parent transaction hash for a total ordering. */
+    public static final Comparator<SelectableOutput> BY_COIN_DEPTH = new Comparator<SelectableOutput>() {
+        public int compare(SelectableOutput a, SelectableOutput b) {
+            int c1 = compareCoinDepth(b, a);
+            if (c1 != 0) return c1;
+            // The "coin*days" destroyed are equal, sort by value alone to get the lowest transaction size.
+            int c2 = compareLong(b.value, a.value);
+            if (c2 != 0) return c2;
+            // They are entirely equivalent (possibly pending) so sort by hash to ensure a total ordering.
+            return compareHash(a.hash, b.hash);
+        }
+    };
+
+    /** Highest value first, breaking ties in the same way as {@link #BY_COIN_DEPTH}. */
+    public static final Comparator<SelectableOutput> BY_VALUE = new Comparator<SelectableOutput>() {
+        public int compare(SelectableOutput a, SelectableOutput b) {
+            int c1 = compareLong(b.value, a.value);
+            if (c1 != 0) return c1;
+            int c2 = compareCoinDepth(b, a);
+            if (c2 != 0) return c2;
+            return compareHash(a.hash, b.hash);
+        }
+    };
+
+    private final TransactionOutput output;
+    private final long value;
+    // value * depth can exceed a long, so it is kept as coinDepthHigh * 2^32 + coinDepthLow.
+    private final long coinDepthHigh;
+    private final long coinDepthLow;
+    private final byte[] hash;
+
+    public SelectableOutput(TransactionOutput output) {
+        TransactionConfidence confidence = output.getParentTransaction().getConfidence();
+        long depth = 0;
+        if (confidence.getConfidenceType() == TransactionConfidence.ConfidenceType.BUILDING)
+            depth = confidence.getDepthInBlocks();
+        this.output = output;
+        this.value = output.getValue().value;
+        long low = (value & 0xFFFFFFFFL) * depth;
+        this.coinDepthHigh = (value >>> 32) * depth + (low >>> 32);
+        this.coinDepthLow = low & 0xFFFFFFFFL;
+        this.hash = output.getParentTransaction().getHash().getBytes();
+    }
+
+    public TransactionOutput getOutput() {
+        return output;
+    }
+
+    public long getValue() {
+        return value;
+    }
+
+    static int compareCoinDepth(SelectableOutput a, SelectableOutput b) {
+        int c = compareLong(a.coinDepthHigh, b.coinDepthHigh);
+        if (c != 0) return c;
+        return compareLong(a.coinDepthLow, b.coinDepthLow);
+    }
+
+    static int compareLong(long a, long b) {
+        return a < b ? -1 : (a == b ? 0 : 1);
+    }
+
+    /** Orders hashes as unsigned big-endian numbers, the same as comparing {@code Sha256Hash.toBigInteger()}. */
+    static int compareHash(byte[] a, byte[] b) {
+        for (int i = 0; i < a.length; i++) {
+            int c = (a[i] & 0xFF) - (b[i] & 0xFF);
+            if (c != 0) return c;
+        }
+        return 0;
+    }
+}
@@ -1,14 +1,19 @@
 package com.assistantindustries.bytewallet;
 
 import com.corundumstudio.socketio.*;
+import org.bitcoinj.core.NetworkParameters;
 import org.bitcoinj.kits.WalletAppKit;
 import org.bitcoinj.params.MainNetParams;
 import org.bitcoinj.wallet.Wallet;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created by assistant on 12/6/16.
@@ -33,17 +38,78 @@ public class Server {
             Configuration config = new Configuration();
             config.setHostname(prop.getProperty("hostname"));
             config.setPort(Integer.parseInt(prop.getProperty("port")));
+            config.setAckMode(AckMode.MANUAL); //SocketInterface acknowledges some events once they are done
 
-            kit = new WalletAppKit( MainNetParams.get(), new File("."), "bytepayr");
+            final Settings settings = new Settings(prop);
+            final NetworkParameters params = MainNetParams.get();
+            final File directory = new File(".");
+            final int shardCount = Math.max(settings.getInt("wallet.shards", 1), 1);
+            // Changes are appended to a journal per wallet instead of rewriting the wallet file after each of them.
+            final boolean journaled = settings.getBoolean("journal.enabled", true);
+            final List<Wallet> wallets = new ArrayList<Wallet>();
+            final List<WalletJournal> journals = new ArrayList<WalletJournal>();
+            kit = new WalletAppKit( params, directory, "bytepayr") {
+                @Override
+                protected void onSetupCompleted() {
+                    // The kit's wallet is the first shard, the others join its chain and peers before the download.
+                    wallets.add(wallet());
+                    List<File> files = new ArrayList<File>();
+                    files.add(vWalletFile);
+                    for (int i = 1; i < shardCount; i++) {
+                        File file = new File(directory, "bytepayr-" + i + ".wallet");
+                        Wallet shard = loadShard(params, file, chain().getBestChainHeight(), !journaled);
+                        chain().addWallet(shard);
+                        peerGroup().addWallet(shard);
+                        wallets.add(shard);
+                        files.add(file);
+                    }
+                    if (!journaled)
+                        return;
+                    for (int i = 0; i < wallets.size(); i++) {
+                        WalletJournal journal = new WalletJournal(wallets.get(i), files.get(i), settings);
+                        try {
+                            journal.open();
+                        } catch (IOException e) {
+                            throw new RuntimeException("Unable to open the journal of " + files.get(i), e);
+                        }
+                        journals.add(journal);
+                    }
+                }
+            };
+            kit.setAutoSave(!journaled);
 
             kit.useTor();
 
-            // Download the block chain and wait until it's done.
+            // Checkpoints let a new chain file start near the wallet's creation time instead of at the genesis block.
+            // The kit only reads them, and then closes them, when it creates the chain file, and without a file of
+            // our own it opens the bundled ones itself.
+            String checkpoints = settings.getString("checkpoints.file", null);
+            if (checkpoints != null && !new File(directory, "bytepayr.spvchain").exists())
+                kit.setCheckpoints(new FileInputStream(checkpoints));
+
+            // Start the kit without waiting for the block chain download, the wallet is served from disk meanwhile.
+            SyncStatus syncStatus = new SyncStatus(settings);
+            kit.setDownloadListener(syncStatus);
+            kit.setBlockingStartup(false);
             kit.startAsync();
             kit.awaitRunning();
             wallet = kit.wallet();
 
-            SocketInterface api = new SocketInterface(kit,new SocketIOServer(config), wallet,prop.getProperty("username"),prop.getProperty("password"));
+            WalletShards shards = new WalletShards(wallets, journals, kit.peerGroup(), settings);
+            SocketInterface api = new SocketInterface(kit,new SocketIOServer(config), shards,prop.getProperty("username"),prop.getProperty("password"),syncStatus,settings);
+
+            MetricsHttpServer metricsServer = null;
+            try {
+                Metrics.DEFAULT.registerMBean("com.assistantindustries.bytewallet:type=Metrics");
+                int metricsPort = settings.getInt("metrics.httpPort", 9404);
+                if (metricsPort > 0) {
+                    metricsServer = new MetricsHttpServer(Metrics.DEFAULT, metricsPort);
+                    metricsServer.start();
+                }
+            } catch (Exception e) {
+                System.out.println("Unable to publish metrics");
+                e.printStackTrace();
+            }
 
             System.out.println("Starting server");
             api.listenSync();
@@ -52,8 +118,24 @@ public class Server {
                 Thread.sleep(Integer.MAX_VALUE); //Sleep forever
             } catch (InterruptedException e) {
                 api.stop();
+                shards.stop();
+                syncStatus.stop();
+                if (metricsServer != null)
+                    metricsServer.stop();
                 kit.stopAsync();
                 kit.awaitTerminated();
+                for (WalletJournal journal : journals) {
+                    try {
+                        journal.close();
+                    } catch (IOException ex) {
+                        ex.printStackTrace();
+                    }
+                }
+                if (!journaled) {
+                    for (Wallet shard : wallets.subList(1, wallets.size())) {
+                        shard.shutdownAutosaveAndWait();
+                    }
+                }
                 System.out.println("Server closed");
             }
 
@@ -72,6 +154,27 @@ public class Server {
 
     }
 
+    /** Loads a wallet shard, creating it if it is new, and with autosave on saves it after every change from then on. */
+    private static Wallet loadShard(NetworkParameters params, File file, int chainHeight, boolean autosave) {
+        try {
+            Wallet shard;
+            if (file.exists()) {
+                shard = Wallet.loadFromFile(file);
+                // Ahead of the chain when the chain file was created again, its transactions are replayed as for the kit's wallet.
+                if (shard.getLastBlockSeenHeight() > chainHeight)
+                    shard.reset();
+            } else {
+                shard = new Wallet(params);
+                shard.saveToFile(file);
+            }
+            if (autosave)
+                shard.autosaveToFile(file, 5, TimeUnit.SECONDS, null);
+            return shard;
+        } catch (Exception e) {
+            throw new RuntimeException("Unable to load wallet shard " + file, e);
+        }
+    }
+
     public static void main(String[] args)  {
         Server server = new Server();
         server.start();
@@ -0,0 +1,37 @@
+package com.assistantindustries.bytewallet;
+
+import java.util.Properties;
+
+/**
+ * Typed access to the optional tuning entries of config.properties, falling back to a default when an entry is
+ * missing or empty.
+ */
+public class Settings {
+    private final Properties properties;
+
+    public Settings(Properties properties) {
+        this.properties = properties;
+    }
+
+    public String getString(String key, String defaultValue) {
+        String value = properties.getProperty(key);
+        if (value == null || value.trim().isEmpty())
+            return defaultValue;
+        return value.trim();
+    }
+
+    public int getInt(String key, int defaultValue) {
+        String value = getString(key, null);
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+
+    public long getLong(String key, long defaultValue) {
+        String value = getString(key, null);
+        return value == null ? defaultValue : Long.parseLong(value);
+    }
+
+    public boolean getBoolean(String key, boolean defaultValue) {
+        String value = getString(key, null);
+        return value == null ? defaultValue : Boolean.parseBoolean(value);
+    }
+}
@@ -1,5 +1,6 @@
 package com.assistantindustries.bytewallet;
 
+import com.corundumstudio.socketio.AckMode;
 import com.corundumstudio.socketio.AckRequest;
 import com.corundumstudio.socketio.SocketIOClient;
 import com.corundumstudio.socketio.SocketIOServer;
@@ -8,134 +9,326 @@ import com.corundumstudio.socketio.listener.DisconnectListener;
 import org.bitcoinj.core.*;
 import org.bitcoinj.core.listeners.AbstractBlockChainListener;
 import org.bitcoinj.core.listeners.BlockChainListener;
-import org.bitcoinj.core.listeners.NewBestBlockListener;
 import org.bitcoinj.kits.WalletAppKit;
-import org.bitcoinj.wallet.CoinSelector;
-import org.bitcoinj.wallet.SendRequest;
-import org.bitcoinj.wallet.Wallet;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
 import java.util.UUID;
-import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Function;
 
 /**
  * Created by assistant on 27/6/16.
  */
 public class SocketInterface {
+    private static final int MAX_BALANCES_CHUNK = 5000;
+    private static final int MAX_HISTORY_PAGE = 500;
+    private static final String WALLET_SYNCING = "Wallet is syncing";
+
     private final SocketIOServer server;
-    private final Wallet wallet;
+    private final NetworkParameters params;
     private final WalletAppKit kit;
     private final String username;
     private final String password;
+    private final WalletShards shards;
+    private final CoinsReceivedRouter coinsReceivedRouter;
+    private final BlockNotifier blockNotifier;
+    private final TransactionSubscriptions transactionSubscriptions;
+    private final OutboundQueues outbound;
+    private final SyncStatus syncStatus;
+    private final List<String> gauges = new ArrayList<String>();
 
-    private HashMap<String, Set<UUID>> addressSubscribers; //Address in Base58
-    private HashMap<String, TransactionReceivedListener> listeners;
-    private Set<UUID> authorizedSessions;
+    private final SubscriptionRegistry subscriptions;
+    private final Set<UUID> authorizedSessions;
 
-    public SocketInterface(WalletAppKit kit, SocketIOServer server, Wallet wallet, String username, String password) {
+    /**
+     * @param server a server in {@link AckMode#MANUAL} ack mode, as some events are acknowledged after their listener
+     *               returns. Listeners that answer right away get the empty ack of the automatic modes if they don't
+     *               send one themselves.
+     * @param shards the wallet shards, all of them on the kit's chain and peer group. The kit's own wallet is the
+     *               first one.
+     */
+    public SocketInterface(WalletAppKit kit, SocketIOServer server, WalletShards shards, String username, String password,
+                           SyncStatus syncStatus, Settings settings) {
+        if (server.getConfiguration().getAckMode() != AckMode.MANUAL)
+            throw new IllegalArgumentException("The socket.io server must be in manual ack mode");
         this.kit = kit;
+        this.syncStatus = syncStatus;
         this.server = server;
-        this.wallet = wallet;
+        this.params = kit.params();
         this.username = username;
         this.password = password;
-        this.addressSubscribers = new HashMap<String, Set<UUID>>();
-        this.listeners = new HashMap<String, TransactionReceivedListener>();
-        this.authorizedSessions = new HashSet<UUID>();
+        this.authorizedSessions = Collections.newSetFromMap(new ConcurrentHashMap<UUID, Boolean>());
+        this.outbound = new OutboundQueues(settings);
+        this.shards = shards;
+        this.coinsReceivedRouter = new CoinsReceivedRouter(newCoinsReceivedListener());
+        this.subscriptions = new SubscriptionRegistry(newSubscriptionListener());
+        List<AddressIndex> indexes = new ArrayList<AddressIndex>();
+        for (WalletShard shard : shards.getShards()) {
+            indexes.add(shard.getAddressIndex());
+        }
+        this.blockNotifier = new BlockNotifier(kit.wallet(), indexes, subscriptions, newBlockListener(), settings);
+        this.transactionSubscriptions = new TransactionSubscriptions(newTransactionConfidenceListener(), settings);
+        for (WalletShard shard : shards.getShards()) {
+            shard.getWallet().addCoinsReceivedEventListener(coinsReceivedRouter);
+            shard.getWallet().addTransactionConfidenceEventListener(transactionSubscriptions);
+        }
         setListeners();
+        registerGauges();
+        syncStatus.addListener(new SyncStatus.Listener() {
+            public void onSynced() {
+                System.out.println("Block chain synced");
+                for (SocketIOClient client : SocketInterface.this.server.getAllClients()) {
+                    outbound.send(client, "syncStatus", newSyncStatusData());
+                }
+            }
+        });
     }
 
     public void setListeners() {
-        server.addEventListener("generateAddress", Void.class, new DataListener<Void>() {
+        addEventListener("generateAddress", Void.class, new DataListener<Void>() {
             public void onData(SocketIOClient client, Void data, AckRequest ackRequest) {
                 if (ackRequest.isAckRequested()) {
-                    Address c = wallet.freshReceiveAddress();
+                    Address c = shards.freshReceiveAddress();
                     ackRequest.sendAckData(c.toBase58());
                 }
             }
         });
-        server.addEventListener("getBalance", Void.class, new DataListener<Void>() {
+        addEventListener("getBalance", Void.class, new DataListener<Void>() {
             public void onData(SocketIOClient client, Void data, AckRequest ackRequest) {
                 if (ackRequest.isAckRequested() && authorizedSessions.contains(client.getSessionId())) {
-                    ackRequest.sendAckData(wallet.getBalance().getValue());
+                    ackRequest.sendAckData(shards.getWalletBalance().getValue(), syncStatus.isSynced());
                 }
             }
         });
-        server.addEventListener("getReceivedForAddress", BalanceForAddress.class, new DataListener<BalanceForAddress>() {
+        addEventListener("getReceivedForAddress", BalanceForAddress.class, new DataListener<BalanceForAddress>() {
             public void onData(SocketIOClient client, BalanceForAddress data, AckRequest ackRequest) {
                 if (ackRequest.isAckRequested()) {
-                    Address address = Address.fromBase58(wallet.getParams(), data.getAddress());
-                    CoinSelector selector = new AddressReceived(address, data.getMinConfirmations());
-                    Coin coins = wallet.getBalance(selector);
-                    ackRequest.sendAckData(coins.getValue());
+                    Address address = Address.fromBase58(params, data.getAddress());
+                    Coin coins = shards.shardFor(address).getBalanceCache().getBalance(address, data.getMinConfirmations());
+                    ackRequest.sendAckData(coins.getValue(), syncStatus.isSynced());
+                }
+            }
+        });
+
+        addEventListener("getReceivedForAddresses", BalancesForAddresses.class, new DataListener<BalancesForAddresses>() {
+            public void onData(SocketIOClient client, BalancesForAddresses data, AckRequest ackRequest) {
+                if (!authorizedSessions.contains(client.getSessionId()))
+                    return;
+                List<String> requested = data.getAddresses() == null ? Collections.<String>emptyList() : data.getAddresses();
+                int chunkSize = Math.min(Math.max(data.getChunkSize(), 1), MAX_BALANCES_CHUNK);
+                int chunks = (requested.size() + chunkSize - 1) / chunkSize;
+                if (ackRequest.isAckRequested()) {
+                    ackRequest.sendAckData(data.getRequestId(), chunks, syncStatus.isSynced());
+                }
+                // Results are streamed as receivedForAddresses events so a large reconciliation doesn't build one huge
+                // frame. Each chunk is read from the address index of every shard in parallel, under a single lock each,
+                // and queued to the client's outbox, which writes it as the client keeps up.
+                for (int chunk = 0; chunk < chunks; chunk++) {
+                    List<String> slice = requested.subList(chunk * chunkSize, Math.min(requested.size(), (chunk + 1) * chunkSize));
+                    List<Address> addresses = new ArrayList<Address>(slice.size());
+                    BalancesChunk result = new BalancesChunk(data.getRequestId(), chunk, chunks);
+                    for (String base58 : slice) {
+                        try {
+                            addresses.add(Address.fromBase58(params, base58));
+                        } catch (AddressFormatException e) {
+                            result.getInvalid().add(base58);
+                        }
+                    }
+                    long[] balances = shards.getBalances(addresses, data.getMinConfirmations());
+                    for (int i = 0; i < balances.length; i++) {
+                        result.getBalances().put(addresses.get(i).toBase58(), balances[i]);
+                    }
+                    outbound.send(client, "receivedForAddresses", result);
+                }
+            }
+        });
+
+        addEventListener("getAddressHistory", AddressHistoryRequest.class, new DataListener<AddressHistoryRequest>() {
+            public void onData(SocketIOClient client, AddressHistoryRequest data, AckRequest ackRequest) {
+                if (!ackRequest.isAckRequested() || !authorizedSessions.contains(client.getSessionId()))
+                    return;
+                String errorDescription;
+                try {
+                    // One page per request, the client asks for the next one with the cursor it got back.
+                    Address address = Address.fromBase58(params, data.getAddress());
+                    int pageSize = Math.min(Math.max(data.getPageSize(), 1), MAX_HISTORY_PAGE);
+                    AddressHistory history = shards.shardFor(address).getHistory();
+                    AddressHistory.Page page = history.getPage(address, data.getCursor(), pageSize);
+                    ackRequest.sendAckData(true, new AddressHistoryPage(address, page, history, params));
+                    return;
+                } catch (AddressFormatException e) {
+                    errorDescription = "Incorrect address format";
+                } catch (IllegalArgumentException e) {
+                    errorDescription = "Incorrect cursor";
+                }
+                ackRequest.sendAckData(false, errorDescription);
+            }
+        });
+
+        addEventListener("getSyncStatus", Void.class, new DataListener<Void>() {
+            public void onData(SocketIOClient client, Void data, AckRequest ackRequest) {
+                if (ackRequest.isAckRequested()) {
+                    ackRequest.sendAckData(newSyncStatusData());
                 }
             }
         });
 
-        server.addEventListener("subscribeForAddress", String.class, new DataListener<String>() {
-            public void onData(SocketIOClient socketIOClient, String address, AckRequest ackRequest) throws Exception {
+        addDeferredEventListener("subscribeForAddress", String.class, new DataListener<String>() {
+            public void onData(final SocketIOClient socketIOClient, String address, final AckRequest ackRequest) throws Exception {
                 if (authorizedSessions.contains(socketIOClient.getSessionId())) {
-                    Address toSubscribe = Address.fromBase58(wallet.getParams(), address);
-                    subscribe(toSubscribe, socketIOClient);
-                    if (ackRequest.isAckRequested()) {
-                        ackRequest.sendAckData(true);
+                    final Address toSubscribe = Address.fromBase58(params, address);
+                    // Watching new addresses while syncing would change the bloom filter mid download.
+                    boolean accepted = syncStatus.whenSynced(new Runnable() {
+                        public void run() {
+                            if (!subscribe(toSubscribe, socketIOClient))
+                                return; //Disconnected while waiting
+                            if (!ackRequest.isAckRequested())
+                                return;
+                            // Acknowledged once the address is watched, so payments to it from then on are reported.
+                            shards.shardFor(toSubscribe).getWatchedAddresses().whenApplied(new Runnable() {
+                                public void run() {
+                                    ackRequest.sendAckData(true);
+                                }
+                            });
+                        }
+                    }, syncTimedOut(ackRequest));
+                    if (!accepted && ackRequest.isAckRequested()) {
+                        ackRequest.sendAckData(false, WALLET_SYNCING);
+                    }
+                } else {
+                    ackRequest.sendAckData(Collections.emptyList());
+                }
+            }
+        });
+
+        addDeferredEventListener("unsubscribeForAddress", String.class, new DataListener<String>() {
+            public void onData(final SocketIOClient socketIOClient, String address, final AckRequest ackRequest) throws Exception {
+                if (authorizedSessions.contains(socketIOClient.getSessionId())) {
+                    final Address toUnsubscribe = Address.fromBase58(params, address);
+                    // Queued as well while syncing, so it can't overtake an earlier subscription.
+                    boolean accepted = syncStatus.whenSynced(new Runnable() {
+                        public void run() {
+                            unsubscribe(toUnsubscribe, socketIOClient);
+                            if (ackRequest.isAckRequested()) {
+                                ackRequest.sendAckData(true);
+                            }
+                        }
+                    }, syncTimedOut(ackRequest));
+                    if (!accepted && ackRequest.isAckRequested()) {
+                        ackRequest.sendAckData(false, WALLET_SYNCING);
                     }
+                } else {
+                    ackRequest.sendAckData(Collections.emptyList());
                 }
             }
         });
 
-        server.addEventListener("unsubscribeForAddress", String.class, new DataListener<String>() {
-            public void onData(SocketIOClient socketIOClient, String address, AckRequest ackRequest) throws Exception {
+        addEventListener("subscribeForTransaction", TransactionSubscription.class, new DataListener<TransactionSubscription>() {
+            public void onData(SocketIOClient socketIOClient, TransactionSubscription data, AckRequest ackRequest) {
                 if (authorizedSessions.contains(socketIOClient.getSessionId())) {
-                    Address toUnsubscribe = Address.fromBase58(wallet.getParams(), address);
-                    unsubscribe(toUnsubscribe, socketIOClient);
+                    Transaction transaction = null;
+                    String errorDescription;
+                    try {
+                        transaction = shards.getTransaction(Sha256Hash.wrap(String.valueOf(data.getTxid())));
+                        errorDescription = transaction == null ? "Unknown transaction" : null;
+                    } catch (IllegalArgumentException e) {
+                        errorDescription = "Incorrect transaction id";
+                    }
+                    if (errorDescription == null)
+                        errorDescription = transactionSubscriptions.subscribe(transaction, data.getConfirmations(),
+                                socketIOClient.getSessionId());
                     if (ackRequest.isAckRequested()) {
-                        ackRequest.sendAckData(true);
+                        if (errorDescription == null)
+                            ackRequest.sendAckData(true);
+                        else
+                            ackRequest.sendAckData(false, errorDescription);
                     }
+                    // Resolved after the ack, as a transaction already confirmed enough is reported right away.
+                    if (errorDescription == null)
+                        transactionSubscriptions.resolveIfReached(transaction);
                 }
             }
         });
 
-        server.addEventListener("sendTransaction", SendTransaction.class, new DataListener<SendTransaction>() {
-            public void onData(SocketIOClient client, SendTransaction data, AckRequest ackRequest) {
+        addDeferredEventListener("sendTransaction", SendTransaction.class, new DataListener<SendTransaction>() {
+            public void onData(SocketIOClient client, SendTransaction data, final AckRequest ackRequest) {
                 if(authorizedSessions.contains(client.getSessionId())){
-                    boolean achieved = false;
-                    String errorDescription = "";
+                    String errorDescription;
                     try {
-                        Address targetAddress = new Address(wallet.getParams(), data.address);
-                        // Do the send of BTC in the background. This could throw InsufficientMoneyException.
-                        SendRequest request = SendRequest.to(targetAddress, Coin.valueOf(data.amount));
-                        System.out.println("Fee per kb: "+request.feePerKb);
-                        request.feePerKb = Coin.valueOf(15000L);
-                        Address changeAddress = wallet.freshReceiveAddress(); //Generate change address
-                        request.changeAddress = changeAddress;
-                        Wallet.SendResult result = wallet.sendCoins(kit.peerGroup(),request );
-                        // Wait for the transaction to propagate across the P2P network, indicating acceptance.
-                        result.broadcastComplete.get();
-                        achieved = true;
-                    } catch (InsufficientMoneyException e) {
-                        errorDescription = "Not enough money";
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
-                    } catch (ExecutionException e) {
-                        e.printStackTrace();
-                    }catch (AddressFormatException e) {
+                        CoinSelectionStrategy strategy = CoinSelectionStrategies.forName(data.coinSelection);
+                        Address targetAddress = Address.fromBase58(params, data.address);
+                        List<PayoutBatcher.Payment> payments = Collections.singletonList(
+                                new PayoutBatcher.Payment(targetAddress, Coin.valueOf(data.amount)));
+                        // Rejected here already, so a bad amount doesn't wait for the sync.
+                        errorDescription = PayoutBatcher.checkPayments(params, payments);
+                        // Do the send of BTC in the background, the ack is sent when it is done.
+                        if (errorDescription == null) {
+                            if (submitWhenSynced(payments, strategy, client, ackRequest))
+                                return;
+                            errorDescription = WALLET_SYNCING;
+                        }
+                    } catch (AddressFormatException e) {
                         errorDescription = "Incorrect address format";
+                    } catch (IllegalArgumentException e) {
+                        errorDescription = "Unknown coin selection strategy";
                     }
                     if (ackRequest.isAckRequested()) {
-                        ackRequest.sendAckData(achieved,errorDescription);
+                        ackRequest.sendAckData(false,errorDescription);
                     }
+                } else {
+                    ackRequest.sendAckData(Collections.emptyList());
                 }
             }
         });
 
-        server.addEventListener("login", LoginData.class, new DataListener<LoginData>() {
+        addDeferredEventListener("sendMany", SendMany.class, new DataListener<SendMany>() {
+            public void onData(SocketIOClient client, SendMany data, final AckRequest ackRequest) {
+                if(authorizedSessions.contains(client.getSessionId())){
+                    String errorDescription = "No payments";
+                    try {
+                        if (data.payments != null && !data.payments.isEmpty()) {
+                            CoinSelectionStrategy strategy = CoinSelectionStrategies.forName(data.coinSelection);
+                            List<PayoutBatcher.Payment> payments = new ArrayList<PayoutBatcher.Payment>();
+                            for (SendTransaction payment : data.payments) {
+                                Address targetAddress = Address.fromBase58(params, payment.address);
+                                payments.add(new PayoutBatcher.Payment(targetAddress, Coin.valueOf(payment.amount)));
+                            }
+                            errorDescription = PayoutBatcher.checkPayments(params, payments);
+                            if (errorDescription == null) {
+                                if (submitWhenSynced(payments, strategy, client, ackRequest))
+                                    return;
+                                errorDescription = WALLET_SYNCING;
+                            }
+                        }
+                    } catch (AddressFormatException e) {
+                        errorDescription = "Incorrect address format";
+                    } catch (IllegalArgumentException e) {
+                        errorDescription = "Unknown coin selection strategy";
+                    }
+                    if (ackRequest.isAckRequested()) {
+                        ackRequest.sendAckData(false,errorDescription);
+                    }
+                } else {
+                    ackRequest.sendAckData(Collections.emptyList());
+                }
+            }
+        });
+
+        addEventListener("login", LoginData.class, new DataListener<LoginData>() {
             public void onData(SocketIOClient socketIOClient, LoginData loginData, AckRequest ackRequest) throws Exception {
                 boolean loggedIn = false;
                 if(loginData.getUser().equals(username)&&loginData.getPass().equals(password)){
                     loggedIn = true;
+                    subscriptions.openSession(socketIOClient.getSessionId());
+                    transactionSubscriptions.openSession(socketIOClient.getSessionId());
                     authorizedSessions.add(socketIOClient.getSessionId());
                 }
                 if(ackRequest.isAckRequested())
@@ -143,59 +336,350 @@ public class SocketInterface {
             }
         });
 
-        kit.chain().addNewBestBlockListener(new NewBestBlockListener() {
-            public void notifyNewBestBlock(StoredBlock storedBlock) throws VerificationException {
-                System.out.println("New block detected in network, broadcasting...");
-                server.getBroadcastOperations().sendEvent("newBlock");
-            }
-        });
+        kit.chain().addNewBestBlockListener(blockNotifier);
 
         server.addDisconnectListener(new DisconnectListener() {
             public void onDisconnect(SocketIOClient socketIOClient) {
+                // The server doesn't take disconnected clients out of their rooms.
+                for (Address address : subscriptions.removeSession(socketIOClient.getSessionId())) {
+                    socketIOClient.leaveRoom(address.toBase58());
+                }
+                transactionSubscriptions.removeSession(socketIOClient.getSessionId());
+                authorizedSessions.remove(socketIOClient.getSessionId());
+                outbound.remove(socketIOClient.getSessionId());
+            }
+        });
+    }
 
-                for (String address : addressSubscribers.keySet()) {
-                    Set<UUID> clientIds = addressSubscribers.get(address);
-                    if (clientIds.contains(socketIOClient.getSessionId())) {
-                        unsubscribe(Address.fromBase58(wallet.getParams(), address), socketIOClient);
-                    }
+    /**
+     * Submits the payments once the chain has caught up, returns false if too much is waiting for it already. The
+     * send fails as syncing if the chain doesn't catch up in time.
+     */
+    private boolean submitWhenSynced(final List<PayoutBatcher.Payment> payments, final CoinSelectionStrategy strategy,
+                                     final SocketIOClient client, final AckRequest ackRequest) {
+        return syncStatus.whenSynced(new Runnable() {
+            public void run() {
+                shards.shardForPayment().getPayoutBatcher().submit(payments, strategy, newSendCallback(client, ackRequest));
+            }
+        }, syncTimedOut(ackRequest));
+    }
+
+    /** Fails a request queued until the chain caught up when it didn't in time. */
+    private Runnable syncTimedOut(final AckRequest ackRequest) {
+        return new Runnable() {
+            public void run() {
+                if (ackRequest.isAckRequested()) {
+                    ackRequest.sendAckData(false, WALLET_SYNCING);
+                }
+            }
+        };
+    }
+
+    private SyncStatusData newSyncStatusData() {
+        return new SyncStatusData(syncStatus.isSynced(), syncStatus.getPercent(), syncStatus.getBlocksLeft(),
+                kit.wallet().getLastBlockSeenHeight(), syncStatus.getQueuedCount());
+    }
+
+    /**
+     * Registers the listener, timing every call and counting the ones that throw. Once it returns, the request is
+     * acknowledged with no data unless the listener did so itself.
+     */
+    private <T> void addEventListener(String event, Class<T> eventClass, DataListener<T> listener) {
+        addEventListener(event, eventClass, listener, true);
+    }
+
+    /**
+     * Registers a listener that may acknowledge the request after it returns, so it must acknowledge every request
+     * itself, rejected ones included.
+     */
+    private <T> void addDeferredEventListener(String event, Class<T> eventClass, DataListener<T> listener) {
+        addEventListener(event, eventClass, listener, false);
+    }
+
+    private <T> void addEventListener(String event, Class<T> eventClass, final DataListener<T> listener,
+                                      final boolean ackOnReturn) {
+        final Metrics.Histogram time = Metrics.DEFAULT.histogram("bytewallet_event_seconds", Metrics.label("event", event),
+                "Time spent handling socket.io events");
+        final Metrics.Counter errors = Metrics.DEFAULT.counter("bytewallet_event_errors_total", Metrics.label("event", event),
+                "Socket.io events whose handler threw");
+        server.addEventListener(event, eventClass, new DataListener<T>() {
+            public void onData(SocketIOClient client, T data, AckRequest ackRequest) throws Exception {
+                long start = System.nanoTime();
+                try {
+                    listener.onData(client, data, ackRequest);
+                    if (ackOnReturn)
+                        ackRequest.sendAckData(Collections.emptyList()); //Ignored if it was acknowledged already
+                } catch (Exception e) {
+                    errors.increment();
+                    throw e;
+                } finally {
+                    time.recordSince(start);
                 }
             }
         });
     }
 
-    private synchronized void subscribe(final Address address, SocketIOClient client) {
-        if (!addressSubscribers.containsKey(address.toBase58()))
-            addressSubscribers.put(address.toBase58(), new HashSet<UUID>());
-        Set<UUID> subscribers = addressSubscribers.get(address.toBase58());
-        if (subscribers.size() == 0) {
-            TransactionReceivedListener listener = new TransactionReceivedListener(address.toBase58()) {
-                @Override
-                public void onTransactionReceived(Wallet wallet, Transaction transaction, Coin prevBalance, Coin newBalance) {
-                    Set<UUID> subscribed = addressSubscribers.get(address.toBase58());
-                    for (UUID clientId : subscribed) {
-                        SocketIOClient client = server.getClient(clientId);
-                        client.sendEvent("transactionReceived", address.toBase58());
-                    }
+    private void registerGauges() {
+        gauge("bytewallet_sessions", "Connected socket.io clients", new Metrics.GaugeSource() {
+            public long value() {
+                return server.getAllClients().size();
+            }
+        });
+        gauge("bytewallet_authorized_sessions", "Logged in socket.io clients", new Metrics.GaugeSource() {
+            public long value() {
+                return authorizedSessions.size();
+            }
+        });
+        gauge("bytewallet_subscribed_addresses", "Addresses with at least one subscriber", new Metrics.GaugeSource() {
+            public long value() {
+                return subscriptions.addressCount();
+            }
+        });
+        gauge("bytewallet_received_listeners", "Addresses routed to transactionReceived events", new Metrics.GaugeSource() {
+            public long value() {
+                return coinsReceivedRouter.size();
+            }
+        });
+        gauge("bytewallet_transaction_subscriptions", "Transactions tracked for subscribeForTransaction", new Metrics.GaugeSource() {
+            public long value() {
+                return transactionSubscriptions.size();
+            }
+        });
+        gauge("bytewallet_wallet_shards", "Wallets the addresses are spread over", new Metrics.GaugeSource() {
+            public long value() {
+                return shards.size();
+            }
+        });
+        gauge("bytewallet_wallet_outputs", "Unspent wallet outputs in the address index", new Metrics.GaugeSource() {
+            public long value() {
+                long total = 0;
+                for (WalletShard shard : shards.getShards()) {
+                    total += shard.getAddressIndex().size();
+                }
+                return total;
+            }
+        });
+        gauge("bytewallet_history_entries", "Address and transaction pairs in the history index", new Metrics.GaugeSource() {
+            public long value() {
+                long total = 0;
+                for (WalletShard shard : shards.getShards()) {
+                    total += shard.getHistory().size();
                 }
-            };
-            listeners.put(address.toBase58(), listener);
-            wallet.addCoinsReceivedEventListener(listener);
-            wallet.addWatchedAddress(address);
+                return total;
+            }
+        });
+        gauge("bytewallet_balance_cache_addresses", "Addresses with cached balances", new Metrics.GaugeSource() {
+            public long value() {
+                long total = 0;
+                for (WalletShard shard : shards.getShards()) {
+                    total += shard.getBalanceCache().size();
+                }
+                return total;
+            }
+        });
+        gauge("bytewallet_address_pool_size", "Receive addresses derived ahead of time", new Metrics.GaugeSource() {
+            public long value() {
+                long total = 0;
+                for (WalletShard shard : shards.getShards()) {
+                    total += shard.getAddressPool().size();
+                }
+                return total;
+            }
+        });
+        counter("bytewallet_address_pool_misses_total", "Addresses derived on demand because the pool was empty", new Metrics.GaugeSource() {
+            public long value() {
+                long total = 0;
+                for (WalletShard shard : shards.getShards()) {
+                    total += shard.getAddressPool().getMisses();
+                }
+                return total;
+            }
+        });
+        gauge("bytewallet_pending_sends", "Sends queued or waiting for their broadcast", new Metrics.GaugeSource() {
+            public long value() {
+                long total = 0;
+                for (WalletShard shard : shards.getShards()) {
+                    total += shard.getSender().getPendingCount();
+                }
+                return total;
+            }
+        });
+        counter("bytewallet_filter_rebuilds_avoided_total", "Bloom filter recalculations saved by batching watched addresses", new Metrics.GaugeSource() {
+            public long value() {
+                long total = 0;
+                for (WalletShard shard : shards.getShards()) {
+                    total += shard.getWatchedAddresses().getFilterRebuildsAvoided();
+                }
+                return total;
+            }
+        });
+        gauge("bytewallet_sync_percent", "Percentage of the block chain download done", new Metrics.GaugeSource() {
+            public long value() {
+                return syncStatus.getPercent();
+            }
+        });
+        gauge("bytewallet_sync_queued", "Sends and subscriptions waiting for the block chain download", new Metrics.GaugeSource() {
+            public long value() {
+                return syncStatus.getQueuedCount();
+            }
+        });
+        gauge("bytewallet_outbound_max_queue_depth", "Longest outbound event queue of a client", new Metrics.GaugeSource() {
+            public long value() {
+                int max = 0;
+                for (int depth : outbound.getQueueDepths().values()) {
+                    max = Math.max(max, depth);
+                }
+                return max;
+            }
+        });
+        for (final int depth : new int[]{0, 1, 4, 16, 64, Integer.MAX_VALUE}) {
+            String bound = depth == Integer.MAX_VALUE ? "+Inf" : String.valueOf(depth);
+            gauge("bytewallet_outbound_queue_depth_clients", Metrics.label("le", bound),
+                    "Clients whose outbound event queue holds at most le events", new Metrics.GaugeSource() {
+                public long value() {
+                    return outbound.countQueuesUpTo(depth);
+                }
+            });
         }
-        subscribers.add(client.getSessionId());
+        counter("bytewallet_outbound_dropped_total", "Outbound events dropped because a client queue was full", new Metrics.GaugeSource() {
+            public long value() {
+                return outbound.getDropped();
+            }
+        });
+        counter("bytewallet_outbound_coalesced_total", "Outbound events merged into a newer one", new Metrics.GaugeSource() {
+            public long value() {
+                return outbound.getCoalesced();
+            }
+        });
+        counter("bytewallet_outbound_disconnected_total", "Clients disconnected because their queue was full with nothing to drop", new Metrics.GaugeSource() {
+            public long value() {
+                return outbound.getDisconnected();
+            }
+        });
+    }
+
+    private void gauge(String name, String help, Metrics.GaugeSource source) {
+        Metrics.DEFAULT.gauge(name, help, source);
+        gauges.add(name);
+    }
+
+    private void gauge(String name, String labels, String help, Metrics.GaugeSource source) {
+        Metrics.DEFAULT.gauge(name, labels, help, source);
+        gauges.add(name + labels);
+    }
+
+    private void counter(String name, String help, Metrics.GaugeSource source) {
+        Metrics.DEFAULT.counter(name, help, source);
+        gauges.add(name);
     }
 
-    private synchronized void unsubscribe(Address address, SocketIOClient client) {
-        Set<UUID> subscribers = addressSubscribers.get(address.toBase58());
-        if (subscribers.size() > 0 && subscribers.contains(client.getSessionId())) {
-            if (subscribers.size() == 1) {
-                TransactionReceivedListener listener = listeners.get(address.toBase58());
-                listeners.remove(address.toBase58());
-                wallet.removeCoinsReceivedEventListener(listener);
-                wallet.removeWatchedAddress(address);
+    private TransactionSender.Callback newSendCallback(final SocketIOClient client, final AckRequest ackRequest) {
+        return new TransactionSender.Callback() {
+            public void onSuccess(Transaction transaction) {
+                if (ackRequest.isAckRequested()) {
+                    ackRequest.sendAckData(true, "", transaction.getHashAsString());
+                }
             }
-            subscribers.remove(client.getSessionId());
-        }
+
+            public void onFailure(String errorDescription) {
+                if (ackRequest.isAckRequested()) {
+                    ackRequest.sendAckData(false, errorDescription);
+                }
+            }
+
+            public void onBroadcastFailed(Transaction transaction, String errorDescription) {
+                outbound.send(client, "broadcastFailed", new BroadcastFailedData(transaction, errorDescription));
+            }
+        };
+    }
+
+    /** Subscribes the client, returning false if it disconnected meanwhile. */
+    private boolean subscribe(Address address, SocketIOClient client) {
+        subscriptions.subscribe(address, client.getSessionId());
+        client.joinRoom(address.toBase58());
+        // A disconnect closes the session before leaving its rooms, so if it is still open here the disconnect will
+        // leave this room too; otherwise it may have missed it.
+        if (subscriptions.isOpen(client.getSessionId()))
+            return true;
+        client.leaveRoom(address.toBase58());
+        return false;
+    }
+
+    private void unsubscribe(Address address, SocketIOClient client) {
+        subscriptions.unsubscribe(address, client.getSessionId());
+        client.leaveRoom(address.toBase58());
+    }
+
+    private SubscriptionRegistry.Listener newSubscriptionListener() {
+        return new SubscriptionRegistry.Listener() {
+            public void onFirstSubscriber(Address address) {
+                coinsReceivedRouter.register(address);
+                shards.shardFor(address).getWatchedAddresses().watch(address);
+            }
+
+            public void onLastUnsubscribed(Address address) {
+                coinsReceivedRouter.unregister(address);
+                shards.shardFor(address).getWatchedAddresses().unwatch(address);
+            }
+        };
+    }
+
+    private BlockNotifier.Listener newBlockListener() {
+        return new BlockNotifier.Listener() {
+            public void onBlocks(BlockNotifier.Notification notification) {
+                System.out.println("New block detected in network, broadcasting...");
+                // Each client only hears about the addresses it is subscribed to.
+                Map<UUID, NewBlock> payloads = new HashMap<UUID, NewBlock>();
+                for (Map.Entry<Address, SortedSet<Integer>> reached : notification.getDepthsReached().entrySet()) {
+                    for (UUID clientId : subscriptions.getSubscribers(reached.getKey())) {
+                        NewBlock payload = payloads.get(clientId);
+                        if (payload == null) {
+                            payload = new NewBlock(notification);
+                            payloads.put(clientId, payload);
+                        }
+                        payload.getDepthsReached().put(reached.getKey().toBase58(), new ArrayList<Integer>(reached.getValue()));
+                    }
+                }
+                for (SocketIOClient client : SocketInterface.this.server.getAllClients()) {
+                    NewBlock payload = payloads.get(client.getSessionId());
+                    outbound.send(client, "newBlock", payload != null ? payload : new NewBlock(notification));
+                }
+            }
+        };
+    }
+
+    private TransactionSubscriptions.Listener newTransactionConfidenceListener() {
+        return new TransactionSubscriptions.Listener() {
+            public void onResolved(UUID session, Transaction transaction, int confirmations, boolean reached) {
+                SocketIOClient client = server.getClient(session);
+                if (client != null)
+                    outbound.send(client, "transactionConfidence", new TransactionConfidenceData(transaction, confirmations, reached));
+            }
+        };
+    }
+
+    private CoinsReceivedRouter.Listener newCoinsReceivedListener() {
+        return new CoinsReceivedRouter.Listener() {
+            public void onTransactionReceived(Transaction transaction, Map<Address, Coin> received) {
+                // Subscribers are the members of the room named after each address. A client gets a single event per
+                // transaction listing every address it is subscribed to.
+                Map<SocketIOClient, TransactionReceived> events = new LinkedHashMap<SocketIOClient, TransactionReceived>();
+                for (Map.Entry<Address, Coin> output : received.entrySet()) {
+                    String address = output.getKey().toBase58();
+                    for (SocketIOClient client : server.getRoomOperations(address).getClients()) {
+                        TransactionReceived event = events.get(client);
+                        if (event == null) {
+                            event = new TransactionReceived(transaction.getHashAsString());
+                            events.put(client, event);
+                        }
+                        event.getOutputs().add(new ReceivedOutput(address, output.getValue().getValue()));
+                    }
+                }
+                for (Map.Entry<SocketIOClient, TransactionReceived> event : events.entrySet()) {
+                    outbound.send(event.getKey(), "transactionReceived", event.getValue());
+                }
+            }
+        };
     }
 
     public void listenSync() {
@@ -204,6 +688,16 @@ public class SocketInterface {
 
     public void stop() {
         server.stop();
+        kit.chain().removeNewBestBlockListener(blockNotifier);
+        for (WalletShard shard : shards.getShards()) {
+            shard.getWallet().removeTransactionConfidenceEventListener(transactionSubscriptions);
+            shard.getWallet().removeCoinsReceivedEventListener(coinsReceivedRouter);
+        }
+        blockNotifier.stop();
+        outbound.stop();
+        for (String gauge : gauges) {
+            Metrics.DEFAULT.remove(gauge);
+        }
     }
 
     private static class BalanceForAddress {
@@ -235,9 +729,437 @@ public class SocketInterface {
         }
     }
 
+    private static class BalancesForAddresses {
+        private String requestId; //echoed back in every chunk
+        private List<String> addresses; //Addresses in Base58
+        private int minConfirmations;
+        private int chunkSize = 500;
+
+        public BalancesForAddresses() {
+        }
+
+        public String getRequestId() {
+            return requestId;
+        }
+
+        public void setRequestId(String requestId) {
+            this.requestId = requestId;
+        }
+
+        public List<String> getAddresses() {
+            return addresses;
+        }
+
+        public void setAddresses(List<String> addresses) {
+            this.addresses = addresses;
+        }
+
+        public int getMinConfirmations() {
+            return minConfirmations;
+        }
+
+        public void setMinConfirmations(int minConfirmations) {
+            this.minConfirmations = minConfirmations;
+        }
+
+        public int getChunkSize() {
+            return chunkSize;
+        }
+
+        public void setChunkSize(int chunkSize) {
+            this.chunkSize = chunkSize;
+        }
+    }
+
+    private static class BalancesChunk {
+        private String requestId;
+        private int chunk;
+        private int chunks;
+        private Map<String, Long> balances; //Address in Base58 to satoshis
+        private List<String> invalid; //Requested addresses that could not be parsed
+
+        public BalancesChunk() {
+        }
+
+        public BalancesChunk(String requestId, int chunk, int chunks) {
+            this.requestId = requestId;
+            this.chunk = chunk;
+            this.chunks = chunks;
+            this.balances = new LinkedHashMap<String, Long>();
+            this.invalid = new ArrayList<String>();
+        }
+
+        public String getRequestId() {
+            return requestId;
+        }
+
+        public int getChunk() {
+            return chunk;
+        }
+
+        public int getChunks() {
+            return chunks;
+        }
+
+        public Map<String, Long> getBalances() {
+            return balances;
+        }
+
+        public List<String> getInvalid() {
+            return invalid;
+        }
+    }
+
+    private static class NewBlock implements OutboundQueues.Coalescible {
+        private int height;
+        private String hash;
+        private int blocks; //Best blocks coalesced into this event
+        private Map<String, List<Integer>> depthsReached; //Subscribed address in Base58 to the confirmations its outputs reached
+
+        public NewBlock() {
+        }
+
+        public NewBlock(BlockNotifier.Notification notification) {
+            this.height = notification.getHeight();
+            this.hash = notification.getHash().toString();
+            this.blocks = notification.getBlocks();
+            this.depthsReached = new LinkedHashMap<String, List<Integer>>();
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        public String getHash() {
+            return hash;
+        }
+
+        public int getBlocks() {
+            return blocks;
+        }
+
+        public Map<String, List<Integer>> getDepthsReached() {
+            return depthsReached;
+        }
+
+        public String coalesceKey() {
+            return "";
+        }
+
+        /** Covers the blocks of an older event still waiting to be sent, and the depths reached in them. */
+        public void absorb(Object older) {
+            NewBlock block = (NewBlock) older;
+            blocks += block.blocks;
+            for (Map.Entry<String, List<Integer>> reached : block.depthsReached.entrySet()) {
+                List<Integer> depths = depthsReached.get(reached.getKey());
+                if (depths == null) {
+                    depthsReached.put(reached.getKey(), reached.getValue());
+                    continue;
+                }
+                TreeSet<Integer> union = new TreeSet<Integer>(depths);
+                union.addAll(reached.getValue());
+                depthsReached.put(reached.getKey(), new ArrayList<Integer>(union));
+            }
+        }
+    }
+
+    private static class SyncStatusData {
+        private boolean synced;
+        private int percent; //Percentage of the block chain download done
+        private int blocksLeft; //-1 until the download has started
+        private int height; //Last block seen by the wallet
+        private int queued; //Sends and subscriptions waiting for the download to finish
+
+        public SyncStatusData() {
+        }
+
+        public SyncStatusData(boolean synced, int percent, int blocksLeft, int height, int queued) {
+            this.synced = synced;
+            this.percent = percent;
+            this.blocksLeft = blocksLeft;
+            this.height = height;
+            this.queued = queued;
+        }
+
+        public boolean isSynced() {
+            return synced;
+        }
+
+        public int getPercent() {
+            return percent;
+        }
+
+        public int getBlocksLeft() {
+            return blocksLeft;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        public int getQueued() {
+            return queued;
+        }
+    }
+
+    private static class TransactionReceived implements OutboundQueues.Coalescible {
+        private String txid;
+        private List<ReceivedOutput> outputs;
+
+        public TransactionReceived() {
+        }
+
+        public TransactionReceived(String txid) {
+            this.txid = txid;
+            this.outputs = new ArrayList<ReceivedOutput>(2);
+        }
+
+        public String getTxid() {
+            return txid;
+        }
+
+        public List<ReceivedOutput> getOutputs() {
+            return outputs;
+        }
+
+        public String coalesceKey() {
+            return txid;
+        }
+
+        /** The same transaction reported again, keeps the addresses only the older event listed. */
+        public void absorb(Object older) {
+            for (ReceivedOutput output : ((TransactionReceived) older).outputs) {
+                boolean listed = false;
+                for (ReceivedOutput own : outputs) {
+                    listed |= own.address.equals(output.address);
+                }
+                if (!listed)
+                    outputs.add(output);
+            }
+        }
+    }
+
+    private static class ReceivedOutput {
+        private String address; //Address in Base58
+        private long amount; //Total paid to the address by the transaction, in satoshi
+
+        public ReceivedOutput() {
+        }
+
+        public ReceivedOutput(String address, long amount) {
+            this.address = address;
+            this.amount = amount;
+        }
+
+        public String getAddress() {
+            return address;
+        }
+
+        public long getAmount() {
+            return amount;
+        }
+    }
+
+    private static class AddressHistoryRequest {
+        private String address; //Address in Base58
+        private String cursor; //Cursor of the previous page, null for the newest transactions
+        private int pageSize = 50;
+
+        public AddressHistoryRequest() {
+        }
+
+        public String getAddress() {
+            return address;
+        }
+
+        public void setAddress(String address) {
+            this.address = address;
+        }
+
+        public String getCursor() {
+            return cursor;
+        }
+
+        public void setCursor(String cursor) {
+            this.cursor = cursor;
+        }
+
+        public int getPageSize() {
+            return pageSize;
+        }
+
+        public void setPageSize(int pageSize) {
+            this.pageSize = pageSize;
+        }
+    }
+
+    private static class AddressHistoryPage {
+        private String address;
+        private List<HistoryEntry> transactions; //Newest first
+        private String cursor; //Cursor of the next page, null if this is the last one
+
+        public AddressHistoryPage() {
+        }
+
+        public AddressHistoryPage(Address address, AddressHistory.Page page, AddressHistory history, NetworkParameters params) {
+            this.address = address.toBase58();
+            this.transactions = new ArrayList<HistoryEntry>(page.getTransactions().size());
+            for (Transaction transaction : page.getTransactions()) {
+                transactions.add(new HistoryEntry(transaction, address, history, params));
+            }
+            this.cursor = page.getCursor();
+        }
+
+        public String getAddress() {
+            return address;
+        }
+
+        public List<HistoryEntry> getTransactions() {
+            return transactions;
+        }
+
+        public String getCursor() {
+            return cursor;
+        }
+    }
+
+    private static class HistoryEntry {
+        private String txid;
+        private long time; //Time the wallet records for the transaction, in milliseconds
+        private String confidence; //building, pending or in_conflict, dead only if it died since the page was read
+        private int height; //Block the transaction appeared in, -1 if not in the best chain
+        private int depth;
+        private long received; //Satoshis paid to the address
+        private long sent; //Satoshis spent from the address
+
+        public HistoryEntry() {
+        }
+
+        public HistoryEntry(Transaction transaction, Address address, AddressHistory history, NetworkParameters params) {
+            this.txid = transaction.getHashAsString();
+            this.time = transaction.getUpdateTime().getTime();
+            TransactionConfidence confidence = transaction.getConfidence();
+            this.confidence = confidence.getConfidenceType().name().toLowerCase();
+            boolean building = confidence.getConfidenceType() == TransactionConfidence.ConfidenceType.BUILDING;
+            this.height = building ? confidence.getAppearedAtChainHeight() : -1;
+            this.depth = building ? confidence.getDepthInBlocks() : 0;
+            this.received = AddressHistory.getReceived(transaction, address, params).getValue();
+            this.sent = history.getSent(transaction, address).getValue();
+        }
+
+        public String getTxid() {
+            return txid;
+        }
+
+        public long getTime() {
+            return time;
+        }
+
+        public String getConfidence() {
+            return confidence;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        public int getDepth() {
+            return depth;
+        }
+
+        public long getReceived() {
+            return received;
+        }
+
+        public long getSent() {
+            return sent;
+        }
+    }
+
+    private static class TransactionSubscription {
+        private String txid;
+        private int confirmations;
+
+        public TransactionSubscription() {
+        }
+
+        public String getTxid() {
+            return txid;
+        }
+
+        public void setTxid(String txid) {
+            this.txid = txid;
+        }
+
+        public int getConfirmations() {
+            return confirmations;
+        }
+
+        public void setConfirmations(int confirmations) {
+            this.confirmations = confirmations;
+        }
+    }
+
+    private static class BroadcastFailedData {
+        private String txid;
+        private String error;
+
+        public BroadcastFailedData() {
+        }
+
+        public BroadcastFailedData(Transaction transaction, String error) {
+            this.txid = transaction.getHashAsString();
+            this.error = error;
+        }
+
+        public String getTxid() {
+            return txid;
+        }
+
+        public String getError() {
+            return error;
+        }
+    }
+
+    private static class TransactionConfidenceData {
+        private String txid;
+        private int confirmations; //Confirmations subscribed for
+        private int depth; //Confirmations the transaction has
+        private boolean reached; //False if the transaction died or is in conflict and will never reach them
+
+        public TransactionConfidenceData() {
+        }
+
+        public TransactionConfidenceData(Transaction transaction, int confirmations, boolean reached) {
+            this.txid = transaction.getHashAsString();
+            this.confirmations = confirmations;
+            TransactionConfidence confidence = transaction.getConfidence();
+            this.depth = confidence.getConfidenceType() == TransactionConfidence.ConfidenceType.BUILDING
+                    ? confidence.getDepthInBlocks() : 0;
+            this.reached = reached;
+        }
+
+        public String getTxid() {
+            return txid;
+        }
+
+        public int getConfirmations() {
+            return confirmations;
+        }
+
+        public int getDepth() {
+            return depth;
+        }
+
+        public boolean isReached() {
+            return reached;
+        }
+    }
+
     private static class SendTransaction {
         private long amount; //amount in satoshi
         private String address; //address as base58 String
+        private String coinSelection; //name of a CoinSelectionStrategies entry, coinDays if not given
 
         public SendTransaction() {
         }
@@ -262,6 +1184,43 @@ public class SocketInterface {
         public void setAddress(String address) {
             this.address = address;
         }
+
+        public String getCoinSelection() {
+            return coinSelection;
+        }
+
+        public void setCoinSelection(String coinSelection) {
+            this.coinSelection = coinSelection;
+        }
+    }
+
+    private static class SendMany {
+        private List<SendTransaction> payments;
+        private String coinSelection; //name of a CoinSelectionStrategies entry, coinDays if not given
+
+        public SendMany() {
+        }
+
+        public SendMany(List<SendTransaction> payments, String coinSelection) {
+            this.payments = payments;
+            this.coinSelection = coinSelection;
+        }
+
+        public List<SendTransaction> getPayments() {
+            return payments;
+        }
+
+        public void setPayments(List<SendTransaction> payments) {
+            this.payments = payments;
+        }
+
+        public String getCoinSelection() {
+            return coinSelection;
+        }
+
+        public void setCoinSelection(String coinSelection) {
+            this.coinSelection = coinSelection;
+        }
     }
 
     private static class LoginData {
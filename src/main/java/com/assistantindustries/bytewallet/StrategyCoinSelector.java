@@ -0,0 +1,86 @@
+package com.assistantindustries.bytewallet;
+
+import org.bitcoinj.core.*;
+import org.bitcoinj.wallet.CoinSelection;
+import org.bitcoinj.wallet.CoinSelector;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class implements a {@link org.bitcoinj.wallet.CoinSelector} which filters the candidates that can be spent
+ * with the given minimum depth and lets a {@link CoinSelectionStrategy} pick among them. Sort keys are computed once
+ * per candidate, and balance queries, which ask for every coin, skip building them at all.
+ */
+public class StrategyCoinSelector implements CoinSelector {
+
+    private static final Metrics.Histogram SELECT_ALL_TIME = Metrics.DEFAULT.histogram("bytewallet_coin_selection_seconds",
+            Metrics.label("target", "all"), "Time spent selecting coins, for balances and for sends");
+    private static final Metrics.Histogram SELECT_TIME = Metrics.DEFAULT.histogram("bytewallet_coin_selection_seconds",
+            Metrics.label("target", "amount"), "Time spent selecting coins, for balances and for sends");
+
+    private final CoinSelectionStrategy strategy;
+    private final int minDepth;
+
+    public StrategyCoinSelector(CoinSelectionStrategy strategy, int minDepth) {
+        this.strategy = strategy;
+        this.minDepth = minDepth;
+    }
+
+    public CoinSelection select(Coin biTarget, List<TransactionOutput> candidates) {
+        long start = System.nanoTime();
+        // When calculating the wallet balance, we may be asked to select all possible coins, if so, avoid sorting
+        // them in order to improve performance.
+        if (biTarget.equals(NetworkParameters.MAX_MONEY)) {
+            CoinSelection selection = selectAll(candidates);
+            SELECT_ALL_TIME.recordSince(start);
+            return selection;
+        }
+        CoinSelection selection = selectAmount(biTarget, candidates);
+        SELECT_TIME.recordSince(start);
+        return selection;
+    }
+
+    private CoinSelection selectAmount(Coin biTarget, List<TransactionOutput> candidates) {
+        SelectableOutput[] outputs = new SelectableOutput[candidates.size()];
+        int count = 0;
+        for (TransactionOutput output : candidates) {
+            // Only pick chain-included transactions, or transactions that are ours and pending.
+            if (shouldSelect(output))
+                outputs[count++] = new SelectableOutput(output);
+        }
+        // Total may be lower than target here, if the given candidates were insufficient to create to requested
+        // transaction.
+        return strategy.select(outputs, count, biTarget.value);
+    }
+
+    private CoinSelection selectAll(List<TransactionOutput> candidates) {
+        ArrayList<TransactionOutput> selected = new ArrayList<TransactionOutput>();
+        long total = 0;
+        for (TransactionOutput output : candidates) {
+            if (!shouldSelect(output)) continue;
+            selected.add(output);
+            total += output.getValue().value;
+        }
+        return new CoinSelection(Coin.valueOf(total), selected);
+    }
+
+    /** Sub-classes can override this to just customize whether outputs are usable, but keep the strategy. */
+    protected boolean shouldSelect(TransactionOutput output) {
+        return isSelectable(output.getParentTransaction());
+    }
+
+    public boolean isSelectable(Transaction tx) {
+        return isSelectable(tx, minDepth);
+    }
+
+    static boolean isSelectable(Transaction tx, int minDepth) {
+        // Only pick chain-included transactions, or transactions that are ours and pending.
+        TransactionConfidence confidence = tx.getConfidence();
+        TransactionConfidence.ConfidenceType type = confidence.getConfidenceType();
+        return (type.equals(TransactionConfidence.ConfidenceType.BUILDING) && confidence.getDepthInBlocks() >= minDepth )
+                || (type.equals(TransactionConfidence.ConfidenceType.PENDING)
+                && ((confidence.getSource().equals(TransactionConfidence.Source.SELF) && confidence.numBroadcastPeers() > 1 )
+                || minDepth==0 ));
+    }
+}
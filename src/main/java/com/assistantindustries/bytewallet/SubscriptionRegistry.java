@@ -0,0 +1,164 @@
+package com.assistantindustries.bytewallet;
+
+import com.google.common.util.concurrent.Striped;
+import org.bitcoinj.core.Address;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Thread safe registry of which sessions are subscribed to which addresses. Changes to an address are serialized on
+ * a lock stripe chosen by the address, so subscriptions to different addresses proceed in parallel, and a reverse
+ * index from session to addresses lets a disconnect clean up only that session's subscriptions.
+ * <p>
+ * A session must be opened before it can subscribe. Once removed it stays closed, so a subscription that was waiting
+ * while its client disconnected can't bring the session back and leave it subscribed forever.
+ */
+public class SubscriptionRegistry {
+
+    /** Called while the address stripe is held, so calls for the same address never overlap or reorder. */
+    public interface Listener {
+        void onFirstSubscriber(Address address);
+
+        void onLastUnsubscribed(Address address);
+    }
+
+    private static class Session {
+        private final Set<Address> addresses = newConcurrentSet();
+        private boolean removed; //Guarded by the session
+    }
+
+    private final ConcurrentHashMap<Address, Set<UUID>> subscribers;
+    private final ConcurrentHashMap<UUID, Session> sessions;
+    private final Striped<Lock> locks;
+    private final Listener listener;
+
+    public SubscriptionRegistry(Listener listener) {
+        this(listener, 64);
+    }
+
+    public SubscriptionRegistry(Listener listener, int stripes) {
+        this.subscribers = new ConcurrentHashMap<Address, Set<UUID>>();
+        this.sessions = new ConcurrentHashMap<UUID, Session>();
+        this.locks = Striped.lock(stripes);
+        this.listener = listener;
+    }
+
+    /** Lets the session subscribe. Opening an open session does nothing. */
+    public void openSession(UUID session) {
+        sessions.putIfAbsent(session, new Session());
+    }
+
+    /** Whether the session was opened and hasn't been removed since. */
+    public boolean isOpen(UUID session) {
+        return sessions.containsKey(session);
+    }
+
+    /**
+     * Returns true if the session was not already subscribed to the address. Nothing is subscribed, and false is
+     * returned, if the session is not open.
+     */
+    public boolean subscribe(Address address, UUID session) {
+        Lock lock = locks.get(address);
+        lock.lock();
+        try {
+            Session open = sessions.get(session);
+            if (open == null)
+                return false;
+            // Checked and recorded under the session, so removeSession either sees this address or has already closed it.
+            synchronized (open) {
+                if (open.removed)
+                    return false;
+                open.addresses.add(address);
+            }
+            Set<UUID> sessionIds = subscribers.get(address);
+            if (sessionIds == null) {
+                sessionIds = newConcurrentSet();
+                subscribers.put(address, sessionIds);
+            }
+            if (!sessionIds.add(session))
+                return false;
+            if (sessionIds.size() == 1)
+                listener.onFirstSubscriber(address);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns true if the session was subscribed to the address. */
+    public boolean unsubscribe(Address address, UUID session) {
+        Session open = sessions.get(session);
+        if (open != null)
+            open.addresses.remove(address);
+        return remove(address, session);
+    }
+
+    /**
+     * Closes the session and drops every subscription of it, at a cost proportional to its own subscriptions, and
+     * returns the addresses it was subscribed to.
+     */
+    public Set<Address> removeSession(UUID session) {
+        Session removed = sessions.remove(session);
+        if (removed == null)
+            return Collections.emptySet();
+        Set<Address> addresses;
+        synchronized (removed) {
+            removed.removed = true;
+            addresses = new HashSet<Address>(removed.addresses);
+        }
+        for (Address address : addresses) {
+            remove(address, session);
+        }
+        return addresses;
+    }
+
+    /** Returns a live view of the sessions subscribed to the address. */
+    public Set<UUID> getSubscribers(Address address) {
+        Set<UUID> sessionIds = subscribers.get(address);
+        if (sessionIds == null)
+            return Collections.emptySet();
+        return Collections.unmodifiableSet(sessionIds);
+    }
+
+    public boolean isSubscribed(Address address) {
+        return subscribers.containsKey(address);
+    }
+
+    public Set<Address> getAddresses() {
+        return Collections.unmodifiableSet(subscribers.keySet());
+    }
+
+    public int addressCount() {
+        return subscribers.size();
+    }
+
+    public int sessionCount() {
+        return sessions.size();
+    }
+
+    private boolean remove(Address address, UUID session) {
+        Lock lock = locks.get(address);
+        lock.lock();
+        try {
+            Set<UUID> sessionIds = subscribers.get(address);
+            if (sessionIds == null || !sessionIds.remove(session))
+                return false;
+            if (sessionIds.isEmpty()) {
+                subscribers.remove(address);
+                listener.onLastUnsubscribed(address);
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static <T> Set<T> newConcurrentSet() {
+        return Collections.newSetFromMap(new ConcurrentHashMap<T, Boolean>());
+    }
+}
@@ -0,0 +1,189 @@
+package com.assistantindustries.bytewallet;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.FilteredBlock;
+import org.bitcoinj.core.Peer;
+import org.bitcoinj.core.listeners.DownloadProgressTracker;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tracks the block chain download so the server can answer from the wallet on disk while it catches up. Work that
+ * must see an up to date wallet, or that would change the bloom filter in the middle of the download, is held back
+ * with {@link #whenSynced(Runnable, Runnable)} and run in order once the chain has caught up, or given up on if the
+ * download takes longer than {@code sync.maxWaitMillis}.
+ */
+public class SyncStatus extends DownloadProgressTracker {
+
+    public interface Listener {
+        void onSynced();
+    }
+
+    private static class Queued {
+        final Runnable task;
+        final Runnable expired;
+        final long deadline; //System.nanoTime() after which the task is given up on
+
+        Queued(Runnable task, Runnable expired, long deadline) {
+            this.task = task;
+            this.expired = expired;
+            this.deadline = deadline;
+        }
+    }
+
+    private final int maxQueued;
+    private final long maxWaitMillis; //0 to wait for the download however long it takes
+    private final ArrayDeque<Queued> queued;
+    private final CopyOnWriteArrayList<Listener> listeners;
+    private final ScheduledExecutorService executor;
+
+    private volatile boolean synced;
+    private volatile int percent;
+    private volatile int blocksLeft = -1;
+    private boolean drained; //Set once the download is done and the work queued until then has run
+
+    public SyncStatus(Settings settings) {
+        this(settings.getInt("sync.maxQueued", 1000), settings.getLong("sync.maxWaitMillis", 120000));
+    }
+
+    public SyncStatus(int maxQueued, long maxWaitMillis) {
+        this.maxQueued = maxQueued;
+        this.maxWaitMillis = maxWaitMillis;
+        this.queued = new ArrayDeque<Queued>();
+        this.listeners = new CopyOnWriteArrayList<Listener>();
+        // Runs the queued tasks and expires them, so a task is never both run and given up on.
+        this.executor = Executors.newSingleThreadScheduledExecutor();
+        Futures.addCallback(getFuture(), new FutureCallback<Long>() {
+            public void onSuccess(Long height) {
+                synced = true;
+                percent = 100;
+                blocksLeft = 0;
+                drain();
+                for (Listener listener : listeners) {
+                    listener.onSynced();
+                }
+            }
+
+            public void onFailure(Throwable t) {
+                t.printStackTrace();
+            }
+        }, executor);
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public boolean isSynced() {
+        return synced;
+    }
+
+    /** Percentage of the download done, 0 until it has started. */
+    public int getPercent() {
+        return percent;
+    }
+
+    /** Blocks still to download, or -1 if the download hasn't started. */
+    public int getBlocksLeft() {
+        return blocksLeft;
+    }
+
+    /**
+     * Runs the task now if the chain has caught up, otherwise queues it to run once it has. If it hasn't caught up
+     * within {@code maxWaitMillis} the task is dropped and {@code expired} is run instead. Returns false, without
+     * running either, if {@code maxQueued} tasks are already waiting.
+     */
+    public boolean whenSynced(Runnable task, Runnable expired) {
+        synchronized (this) {
+            if (!drained) {
+                if (queued.size() >= maxQueued)
+                    return false;
+                queued.add(new Queued(task, expired, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxWaitMillis)));
+                if (maxWaitMillis > 0) {
+                    executor.schedule(new Runnable() {
+                        public void run() {
+                            expire();
+                        }
+                    }, maxWaitMillis, TimeUnit.MILLISECONDS);
+                }
+                return true;
+            }
+        }
+        task.run();
+        return true;
+    }
+
+    public synchronized int getQueuedCount() {
+        return queued.size();
+    }
+
+    public void stop() {
+        executor.shutdownNow();
+    }
+
+    @Override
+    public void onChainDownloadStarted(Peer peer, int blocksLeft) {
+        super.onChainDownloadStarted(peer, blocksLeft);
+        if (!synced)
+            this.blocksLeft = blocksLeft;
+    }
+
+    @Override
+    public void onBlocksDownloaded(Peer peer, Block block, FilteredBlock filteredBlock, int blocksLeft) {
+        super.onBlocksDownloaded(peer, block, filteredBlock, blocksLeft);
+        if (!synced)
+            this.blocksLeft = Math.max(blocksLeft, 0);
+    }
+
+    @Override
+    protected void progress(double pct, int blocksSoFar, Date date) {
+        super.progress(pct, blocksSoFar, date);
+        percent = (int) pct;
+    }
+
+    /** Runs the queued tasks in order, tasks queued meanwhile included, and then lets new ones run right away. */
+    private void drain() {
+        while (true) {
+            Queued next;
+            synchronized (this) {
+                next = queued.poll();
+                if (next == null) {
+                    drained = true;
+                    return;
+                }
+            }
+            run(next.task);
+        }
+    }
+
+    /** Gives up on the tasks past their deadline; all wait as long, so they are the oldest ones. */
+    private void expire() {
+        List<Queued> expired = new ArrayList<Queued>();
+        synchronized (this) {
+            long now = System.nanoTime();
+            while (!queued.isEmpty() && queued.peek().deadline - now <= 0) {
+                expired.add(queued.poll());
+            }
+        }
+        for (Queued next : expired) {
+            run(next.expired);
+        }
+    }
+
+    private static void run(Runnable task) {
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package com.assistantindustries.bytewallet;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.InsufficientMoneyException;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionBroadcaster;
+import org.bitcoinj.core.TransactionOutput;
+import org.bitcoinj.wallet.SendRequest;
+import org.bitcoinj.wallet.Wallet;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Completes, signs and broadcasts send requests on its own executor, so socket.io event threads never wait for the
+ * wallet or the P2P network. At most {@code maxPending} sends may be queued or waiting for their broadcast at the same
+ * time; further requests fail immediately instead of piling up.
+ */
+public class TransactionSender {
+
+    public static final String NOT_ENOUGH_MONEY = "Not enough money";
+    public static final String COULD_NOT_CREATE = "Could not create transaction";
+
+    public enum AckMode {
+        /** Report success once the transaction has propagated across the P2P network. */
+        BROADCAST,
+        /** Report success as soon as the transaction is signed and committed to the wallet. */
+        COMMITTED
+    }
+
+    public interface Callback {
+        void onSuccess(Transaction transaction);
+
+        void onFailure(String errorDescription);
+
+        /**
+         * Called in {@link AckMode#COMMITTED} mode when the transaction already reported as sent could not be
+         * broadcast. It stays in the wallet as pending.
+         */
+        void onBroadcastFailed(Transaction transaction, String errorDescription);
+    }
+
+    private static final Logger log = Logger.getLogger(TransactionSender.class.getName());
+    private static final Metrics.Counter BROADCAST_FAILURES = Metrics.DEFAULT.counter(
+            "bytewallet_broadcast_failures_total", "Sent transactions that could not be broadcast");
+
+    private final Wallet wallet;
+    private final TransactionBroadcaster broadcaster;
+    private final ExecutorService executor;
+    private final Semaphore pending;
+    private final int maxPending;
+    private final AckMode ackMode;
+    private final Object completing = new Object();
+
+    public TransactionSender(Wallet wallet, TransactionBroadcaster broadcaster, Settings settings) {
+        this(wallet, broadcaster, settings.getInt("send.threads", 0), settings.getInt("send.maxPending", 64),
+                AckMode.valueOf(settings.getString("send.ackMode", "broadcast").toUpperCase()));
+    }
+
+    /**
+     * @param threads number of worker threads, or 0 to use a virtual thread per send when the JVM supports them
+     *                and a single worker otherwise.
+     */
+    public TransactionSender(Wallet wallet, TransactionBroadcaster broadcaster, int threads, int maxPending, AckMode ackMode) {
+        this.wallet = wallet;
+        this.broadcaster = broadcaster;
+        this.executor = newExecutor(threads);
+        this.pending = new Semaphore(maxPending);
+        this.maxPending = maxPending;
+        this.ackMode = ackMode;
+    }
+
+    /** Queues the request. The callback is called exactly once, on a sender or network thread. */
+    public void send(final SendRequest request, final Callback callback) {
+        if (!pending.tryAcquire()) {
+            callback.onFailure("Too many pending sends");
+            return;
+        }
+        executor.execute(new Runnable() {
+            public void run() {
+                Context.propagate(wallet.getContext());
+                Wallet.SendResult result;
+                try {
+                    result = sendCoins(request);
+                } catch (InsufficientMoneyException e) {
+                    pending.release();
+                    callback.onFailure(NOT_ENOUGH_MONEY);
+                    return;
+                } catch (RuntimeException e) {
+                    log.log(Level.WARNING, "Could not create transaction", e);
+                    pending.release();
+                    callback.onFailure(COULD_NOT_CREATE);
+                    return;
+                }
+                final Transaction sent = result.tx;
+                if (ackMode == AckMode.COMMITTED)
+                    callback.onSuccess(sent);
+                // Wait for the transaction to propagate across the P2P network, indicating acceptance.
+                Futures.addCallback(result.broadcastComplete, new FutureCallback<Transaction>() {
+                    public void onSuccess(Transaction transaction) {
+                        pending.release();
+                        if (ackMode == AckMode.BROADCAST)
+                            callback.onSuccess(transaction);
+                    }
+
+                    public void onFailure(Throwable t) {
+                        log.log(Level.WARNING, "Broadcast of " + sent.getHashAsString() + " failed", t);
+                        BROADCAST_FAILURES.increment();
+                        pending.release();
+                        if (ackMode == AckMode.BROADCAST)
+                            callback.onFailure("Broadcast failed");
+                        else
+                            callback.onBroadcastFailed(sent, "Broadcast failed");
+                    }
+                }, MoreExecutors.directExecutor());
+            }
+        });
+    }
+
+    /**
+     * Does what {@link Wallet#sendCoins(TransactionBroadcaster, SendRequest)} does, except that a change output below
+     * the dust threshold is left out and its value added to the fee, as nobody could spend it economically. This is
+     * what lets a selection that exceeds the target by a dust sized amount pay no change at all.
+     */
+    private Wallet.SendResult sendCoins(SendRequest request) throws InsufficientMoneyException {
+        for (TransactionOutput output : request.tx.getOutputs()) {
+            if (output.isDust())
+                throw new Wallet.DustySendRequested();
+        }
+        List<TransactionOutput> payments = new ArrayList<TransactionOutput>(request.tx.getOutputs());
+        request.signInputs = false;
+        // Completed and committed under one lock, as the wallet does, so two sends never select the same coins.
+        synchronized (completing) {
+            wallet.completeTx(request);
+            dropDustChange(request.tx, payments);
+            wallet.signTransaction(request);
+            wallet.commitTx(request.tx);
+        }
+        Wallet.SendResult result = new Wallet.SendResult();
+        result.tx = request.tx;
+        result.broadcast = broadcaster.broadcastTransaction(request.tx);
+        result.broadcastComplete = result.broadcast.future();
+        return result;
+    }
+
+    /** Removes the output completion added for change if it is dust, keeping the order of the others. */
+    private static void dropDustChange(Transaction tx, List<TransactionOutput> payments) {
+        List<TransactionOutput> kept = new ArrayList<TransactionOutput>(tx.getOutputs().size());
+        boolean dropped = false;
+        for (TransactionOutput output : tx.getOutputs()) {
+            if (output.isDust() && !isAmong(output, payments))
+                dropped = true;
+            else
+                kept.add(output);
+        }
+        if (!dropped)
+            return;
+        tx.clearOutputs();
+        for (TransactionOutput output : kept) {
+            tx.addOutput(output);
+        }
+    }
+
+    private static boolean isAmong(TransactionOutput output, List<TransactionOutput> outputs) {
+        for (TransactionOutput other : outputs) {
+            if (other == output)
+                return true;
+        }
+        return false;
+    }
+
+    public int getPendingCount() {
+        return maxPending - pending.availablePermits();
+    }
+
+    public void stop() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static ExecutorService newExecutor(int threads) {
+        if (threads > 0)
+            return Executors.newFixedThreadPool(threads);
+        try {
+            // Executors.newVirtualThreadPerTaskExecutor() only exists from Java 21 on.
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (Exception e) {
+            return Executors.newSingleThreadExecutor();
+        }
+    }
+}
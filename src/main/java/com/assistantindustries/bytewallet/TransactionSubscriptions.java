@@ -0,0 +1,197 @@
+package com.assistantindustries.bytewallet;
+
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionConfidence;
+import org.bitcoinj.core.listeners.TransactionConfidenceEventListener;
+import org.bitcoinj.wallet.Wallet;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Sessions waiting for wallet transactions to reach a number of confirmations. A single wallet confidence listener
+ * looks every event up by transaction hash, so the wallet announcing the new depth of all its transactions on every
+ * block costs one hash lookup per transaction, however many are being tracked. A subscription is reported once, when
+ * its transaction reaches the requested confirmations or can no longer reach them, and is then forgotten.
+ * <p>
+ * Like {@link SubscriptionRegistry}, a session must be opened before it subscribes and stays closed once removed, so a
+ * subscription racing with the disconnect of its client can't be left behind.
+ */
+public class TransactionSubscriptions implements TransactionConfidenceEventListener {
+
+    public interface Listener {
+        /**
+         * Called once per subscription, on the thread of the confidence event or of the subscribe call.
+         *
+         * @param reached true if the transaction has the requested confirmations, false if it died or is in conflict.
+         */
+        void onResolved(UUID session, Transaction transaction, int confirmations, boolean reached);
+    }
+
+    private static class Subscription {
+        private final UUID session;
+        private final int confirmations;
+
+        private Subscription(UUID session, int confirmations) {
+            this.session = session;
+            this.confirmations = confirmations;
+        }
+    }
+
+    public static final String CONFIRMATIONS_OUT_OF_RANGE = "Confirmations out of range";
+    public static final String TOO_MANY_SUBSCRIPTIONS = "Too many transaction subscriptions";
+    public static final String SESSION_CLOSED = "Session closed";
+
+    private final Listener listener;
+    private final int maxConfirmations;
+    private final int maxPerSession;
+    private final ConcurrentHashMap<Sha256Hash, List<Subscription>> byTransaction;
+    private final HashMap<UUID, Set<Sha256Hash>> bySession; //Guarded by this, like every change to byTransaction
+    private final HashSet<UUID> openSessions; //Guarded by this
+
+    public TransactionSubscriptions(Listener listener, Settings settings) {
+        this(listener, settings.getInt("transactionSubscriptions.maxConfirmations", 100),
+                settings.getInt("transactionSubscriptions.maxPerSession", 1000));
+    }
+
+    public TransactionSubscriptions(Listener listener, int maxConfirmations, int maxPerSession) {
+        this.listener = listener;
+        this.maxConfirmations = maxConfirmations;
+        this.maxPerSession = maxPerSession;
+        this.byTransaction = new ConcurrentHashMap<Sha256Hash, List<Subscription>>();
+        this.bySession = new HashMap<UUID, Set<Sha256Hash>>();
+        this.openSessions = new HashSet<UUID>();
+    }
+
+    /** Lets the session subscribe. Opening an open session does nothing. */
+    public synchronized void openSession(UUID session) {
+        openSessions.add(session);
+    }
+
+    /**
+     * Tracks the wallet transaction for the session, counting as one of its subscriptions until it is resolved. Returns
+     * null if it was subscribed, or why it wasn't. The transaction is only checked on its next confidence change, so
+     * call {@link #resolveIfReached(Transaction)} once the caller is ready for the listener to be called.
+     */
+    public String subscribe(Transaction transaction, int confirmations, UUID session) {
+        if (confirmations < 0 || confirmations > maxConfirmations)
+            return CONFIRMATIONS_OUT_OF_RANGE;
+        Sha256Hash hash = transaction.getHash();
+        synchronized (this) {
+            // Checked under the same lock as removeSession, so the session is either still open or nothing is recorded.
+            if (!openSessions.contains(session))
+                return SESSION_CLOSED;
+            Set<Sha256Hash> hashes = bySession.get(session);
+            if (hashes != null && hashes.size() >= maxPerSession && !hashes.contains(hash))
+                return TOO_MANY_SUBSCRIPTIONS;
+            List<Subscription> subscriptions = byTransaction.get(hash);
+            if (subscriptions == null) {
+                subscriptions = new ArrayList<Subscription>(2);
+                byTransaction.put(hash, subscriptions);
+            }
+            subscriptions.add(new Subscription(session, confirmations));
+            if (hashes == null) {
+                hashes = new HashSet<Sha256Hash>();
+                bySession.put(session, hashes);
+            }
+            hashes.add(hash);
+        }
+        return null;
+    }
+
+    /**
+     * Reports the subscriptions to the transaction that already have their confirmations, or can no longer reach them.
+     * Called after subscribing, so a confidence change racing with the subscription isn't missed.
+     */
+    public void resolveIfReached(Transaction transaction) {
+        dispatch(transaction);
+    }
+
+    /** Closes the session and forgets every subscription of it, to be called when it disconnects. */
+    public synchronized void removeSession(UUID session) {
+        openSessions.remove(session);
+        Set<Sha256Hash> hashes = bySession.remove(session);
+        if (hashes == null)
+            return;
+        for (Sha256Hash hash : hashes) {
+            List<Subscription> subscriptions = byTransaction.get(hash);
+            if (subscriptions == null)
+                continue;
+            Iterator<Subscription> it = subscriptions.iterator();
+            while (it.hasNext()) {
+                if (it.next().session.equals(session))
+                    it.remove();
+            }
+            if (subscriptions.isEmpty())
+                byTransaction.remove(hash);
+        }
+    }
+
+    /** Number of transactions being tracked. */
+    public int size() {
+        return byTransaction.size();
+    }
+
+    public void onTransactionConfidenceChanged(Wallet wallet, Transaction tx) {
+        if (byTransaction.isEmpty() || !byTransaction.containsKey(tx.getHash()))
+            return;
+        dispatch(tx);
+    }
+
+    private void dispatch(Transaction tx) {
+        TransactionConfidence confidence = tx.getConfidence();
+        TransactionConfidence.ConfidenceType type = confidence.getConfidenceType();
+        boolean dead = type == TransactionConfidence.ConfidenceType.DEAD
+                || type == TransactionConfidence.ConfidenceType.IN_CONFLICT;
+        int depth = type == TransactionConfidence.ConfidenceType.BUILDING ? confidence.getDepthInBlocks() : 0;
+        boolean seen = type == TransactionConfidence.ConfidenceType.BUILDING
+                || type == TransactionConfidence.ConfidenceType.PENDING;
+        ArrayList<Subscription> resolved = new ArrayList<Subscription>();
+        synchronized (this) {
+            List<Subscription> subscriptions = byTransaction.get(tx.getHash());
+            if (subscriptions == null)
+                return;
+            Iterator<Subscription> it = subscriptions.iterator();
+            while (it.hasNext()) {
+                Subscription subscription = it.next();
+                if (dead || (seen && depth >= subscription.confirmations)) {
+                    resolved.add(subscription);
+                    it.remove();
+                }
+            }
+            if (subscriptions.isEmpty())
+                byTransaction.remove(tx.getHash());
+            for (Subscription subscription : resolved) {
+                if (!hasSession(subscriptions, subscription.session))
+                    removeFromSession(subscription.session, tx.getHash());
+            }
+        }
+        for (Subscription subscription : resolved) {
+            listener.onResolved(subscription.session, tx, subscription.confirmations, !dead);
+        }
+    }
+
+    private static boolean hasSession(List<Subscription> subscriptions, UUID session) {
+        for (Subscription subscription : subscriptions) {
+            if (subscription.session.equals(session))
+                return true;
+        }
+        return false;
+    }
+
+    private void removeFromSession(UUID session, Sha256Hash hash) {
+        Set<Sha256Hash> hashes = bySession.get(session);
+        if (hashes == null)
+            return;
+        hashes.remove(hash);
+        if (hashes.isEmpty())
+            bySession.remove(session);
+    }
+}
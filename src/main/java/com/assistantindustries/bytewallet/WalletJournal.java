@@ -0,0 +1,399 @@
+package com.assistantindustries.bytewallet;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionConfidence;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.TransactionOutPoint;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.utils.Threading;
+import org.bitcoinj.wallet.KeyChain;
+import org.bitcoinj.wallet.Wallet;
+import org.bitcoinj.wallet.listeners.ScriptsChangeEventListener;
+import org.bitcoinj.wallet.listeners.WalletCoinsReceivedEventListener;
+import org.bitcoinj.wallet.listeners.WalletCoinsSentEventListener;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Saves the changes to a wallet as small records appended to a journal, instead of rewriting the whole wallet file
+ * after each of them, so the cost of a change doesn't grow with the wallet. The journal holds what can't be recovered
+ * from the block chain: the receive keys issued, the watched scripts added and removed, and the pending transactions
+ * sent or received. In the background the wallet file is saved as a snapshot and the journal started again, and on
+ * startup the journal left by the last run is replayed into the snapshot. Confirmed transactions received since the
+ * snapshot are found again by the block chain, which the kit rolls back to the height of the snapshot.
+ * <p>
+ * Records are appended to segment files named after the wallet file, {@code bytepayr.wallet.journal.N}. Each record is
+ * its length, a type, the payload and a CRC32 of the type and payload, so a record torn by a crash is detected and
+ * dropped, as is a segment cut short before its header. Replaying a record is idempotent, so records already in the
+ * snapshot are harmless.
+ */
+public class WalletJournal implements AddressPool.Listener, ScriptsChangeEventListener, WalletCoinsSentEventListener,
+        WalletCoinsReceivedEventListener {
+
+    private static final int MAGIC = 0x424a4e4c; //"BJNL"
+    private static final byte ISSUED_KEYS = 1;
+    private static final byte SCRIPTS_ADDED = 2;
+    private static final byte SCRIPTS_REMOVED = 3;
+    private static final byte TRANSACTION = 4;
+
+    private static final Metrics.Histogram APPEND_TIME = Metrics.DEFAULT.histogram("bytewallet_journal_append_seconds",
+            "Time spent appending a record to a wallet journal");
+    private static final Metrics.Histogram COMPACTION_TIME = Metrics.DEFAULT.histogram("bytewallet_journal_compaction_seconds",
+            "Time spent saving a wallet snapshot and starting its journal again");
+    private static final Metrics.Counter ERRORS = Metrics.DEFAULT.counter("bytewallet_journal_errors_total",
+            "Journal appends that failed, each followed by a snapshot");
+
+    private final Wallet wallet;
+    private final File walletFile;
+    private final boolean fsync;
+    private final long compactBytes;
+    private final long compactMillis;
+    private final ScheduledExecutorService compactor;
+    private final CRC32 crc = new CRC32();
+
+    private FileChannel channel; //Segment being appended to, null while closed
+    private int generation;
+    private long size; //Bytes in the current segment
+    private boolean compactionScheduled;
+    private volatile Sha256Hash snapshotBlock; //Last block seen by the wallet when the snapshot was taken
+
+    public WalletJournal(Wallet wallet, File walletFile, Settings settings) {
+        this(wallet, walletFile, settings.getBoolean("journal.fsync", true), settings.getLong("journal.compactBytes", 16L << 20),
+                settings.getLong("journal.compactMillis", 60000L));
+    }
+
+    /**
+     * @param fsync         whether each record is forced to the disk before the change is reported done.
+     * @param compactBytes  journal size that triggers a snapshot before the next scheduled one.
+     * @param compactMillis time between snapshots of a wallet that changed.
+     */
+    public WalletJournal(Wallet wallet, File walletFile, boolean fsync, long compactBytes, long compactMillis) {
+        this.wallet = wallet;
+        this.walletFile = walletFile;
+        this.fsync = fsync;
+        this.compactBytes = compactBytes;
+        this.compactMillis = compactMillis;
+        this.compactor = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    /**
+     * Replays the journal left by the last run into the wallet, saves the result as the new snapshot and starts
+     * recording the wallet's changes. Records run on the thread making the change, so a change is in the journal once
+     * the wallet call making it returns.
+     */
+    public void open() throws IOException {
+        int replayed = 0;
+        List<File> segments = segments();
+        for (File segment : segments) {
+            replayed += replay(segment);
+        }
+        if (!segments.isEmpty())
+            generation = generationOf(segments.get(segments.size() - 1));
+        if (replayed > 0)
+            System.out.println("Replayed " + replayed + " journal records into " + walletFile);
+        compact();
+        wallet.addScriptChangeEventListener(Threading.SAME_THREAD, this);
+        wallet.addCoinsSentEventListener(Threading.SAME_THREAD, this);
+        wallet.addCoinsReceivedEventListener(Threading.SAME_THREAD, this);
+        compactor.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                synchronized (WalletJournal.this) {
+                    // Blocks aren't journaled, a snapshot saves the confirmations so a restart doesn't download them again.
+                    if (size <= 4 && equal(snapshotBlock, wallet.getLastBlockSeenHash()))
+                        return; //Nothing changed since the last snapshot
+                }
+                compactQuietly();
+            }
+        }, compactMillis, compactMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /** Saves a last snapshot and removes the journal, once the wallet has stopped changing. */
+    public void close() throws IOException {
+        wallet.removeScriptChangeEventListener(this);
+        wallet.removeCoinsSentEventListener(this);
+        wallet.removeCoinsReceivedEventListener(this);
+        // Not interrupted, an interrupt closes the channel a compaction may be writing to.
+        compactor.shutdown();
+        try {
+            compactor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            if (channel != null)
+                channel.close();
+            channel = null;
+        }
+        wallet.saveToFile(walletFile);
+        for (File segment : segments()) {
+            delete(segment);
+        }
+    }
+
+    /**
+     * Starts a new journal segment, saves the wallet as a snapshot and deletes the older segments. Changes made while
+     * the snapshot is written are in the new segment whether or not the snapshot has them.
+     */
+    public void compact() throws IOException {
+        long start = System.nanoTime();
+        int current;
+        synchronized (this) {
+            if (channel != null)
+                channel.close();
+            current = ++generation;
+            channel = FileChannel.open(segmentFile(current).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            ByteBuffer header = ByteBuffer.allocate(4);
+            header.putInt(MAGIC).flip();
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+            size = 4;
+            compactionScheduled = false;
+        }
+        // Read before saving, so a block arriving meanwhile is saved by the next snapshot.
+        snapshotBlock = wallet.getLastBlockSeenHash();
+        wallet.saveToFile(walletFile);
+        for (File segment : segments()) {
+            if (generationOf(segment) < current)
+                delete(segment);
+        }
+        COMPACTION_TIME.recordSince(start);
+    }
+
+    /** Bytes in the current journal segment. */
+    public synchronized long size() {
+        return size;
+    }
+
+    public void onKeysIssued() {
+        ByteBuffer payload = ByteBuffer.allocate(4);
+        payload.putInt(wallet.getActiveKeyChain().getIssuedExternalKeys());
+        append(ISSUED_KEYS, payload.array());
+    }
+
+    public void onScriptsChanged(Wallet wallet, List<Script> scripts, boolean isAddingScripts) {
+        int length = 4;
+        for (Script script : scripts) {
+            length += 4 + script.getProgram().length;
+        }
+        ByteBuffer payload = ByteBuffer.allocate(length);
+        payload.putInt(scripts.size());
+        for (Script script : scripts) {
+            payload.putInt(script.getProgram().length).put(script.getProgram());
+        }
+        append(isAddingScripts ? SCRIPTS_ADDED : SCRIPTS_REMOVED, payload.array());
+    }
+
+    public void onCoinsSent(Wallet wallet, Transaction tx, Coin prevBalance, Coin newBalance) {
+        if (tx.getConfidence().getConfidenceType() == TransactionConfidence.ConfidenceType.PENDING)
+            append(TRANSACTION, tx.unsafeBitcoinSerialize());
+    }
+
+    public void onCoinsReceived(Wallet wallet, Transaction tx, Coin prevBalance, Coin newBalance) {
+        // A transaction spending from the wallet is recorded by onCoinsSent.
+        if (tx.getConfidence().getConfidenceType() == TransactionConfidence.ConfidenceType.PENDING
+                && tx.getValueSentFromMe(wallet).signum() == 0)
+            append(TRANSACTION, tx.unsafeBitcoinSerialize());
+    }
+
+    private void append(byte type, byte[] payload) {
+        long start = System.nanoTime();
+        synchronized (this) {
+            if (channel == null)
+                return;
+            ByteBuffer record = ByteBuffer.allocate(9 + payload.length);
+            record.putInt(1 + payload.length).put(type).put(payload);
+            crc.reset();
+            crc.update(record.array(), 4, 1 + payload.length);
+            record.putInt((int) crc.getValue()).flip();
+            try {
+                while (record.hasRemaining()) {
+                    channel.write(record);
+                }
+                if (fsync)
+                    channel.force(false);
+                size += record.limit();
+            } catch (IOException e) {
+                // The change is only in memory now, a snapshot saves it.
+                e.printStackTrace();
+                ERRORS.increment();
+                size = compactBytes;
+            }
+            if (size >= compactBytes && !compactionScheduled) {
+                compactionScheduled = true;
+                compactor.execute(new Runnable() {
+                    public void run() {
+                        compactQuietly();
+                    }
+                });
+            }
+        }
+        APPEND_TIME.recordSince(start);
+    }
+
+    private void compactQuietly() {
+        try {
+            Context.propagate(wallet.getContext());
+            compact();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Applies the records of a segment to the wallet, returns how many there were. A torn tail is cut off, and a
+     * segment without a whole header, left by a crash while it was created, is deleted.
+     */
+    private int replay(File segment) throws IOException {
+        int records = 0;
+        RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        try {
+            FileChannel channel = file.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+            }
+            buffer.flip();
+            if (buffer.remaining() < 4) {
+                file.close();
+                System.out.println("Deleting empty journal segment " + segment);
+                delete(segment);
+                return 0;
+            }
+            if (buffer.getInt() != MAGIC)
+                throw new IOException("Not a wallet journal: " + segment);
+            while (buffer.remaining() >= 4) {
+                int position = buffer.position();
+                int length = buffer.getInt();
+                if (length < 1 || buffer.remaining() < length + 4) {
+                    truncate(channel, segment, position);
+                    break;
+                }
+                byte[] record = new byte[length];
+                buffer.get(record);
+                crc.reset();
+                crc.update(record, 0, length);
+                if (buffer.getInt() != (int) crc.getValue()) {
+                    truncate(channel, segment, position);
+                    break;
+                }
+                try {
+                    apply(record[0], ByteBuffer.wrap(record, 1, length - 1));
+                } catch (RuntimeException e) {
+                    // Such as a pending transaction the wallet now finds conflicting, the rest still applies.
+                    e.printStackTrace();
+                }
+                records++;
+            }
+        } finally {
+            file.close();
+        }
+        return records;
+    }
+
+    private void apply(byte type, ByteBuffer payload) {
+        switch (type) {
+            case ISSUED_KEYS:
+                int issued = payload.getInt() - wallet.getActiveKeyChain().getIssuedExternalKeys();
+                if (issued > 0)
+                    wallet.freshKeys(KeyChain.KeyPurpose.RECEIVE_FUNDS, issued);
+                break;
+            case SCRIPTS_ADDED:
+            case SCRIPTS_REMOVED:
+                List<Script> scripts = new ArrayList<Script>();
+                for (int count = payload.getInt(); count > 0; count--) {
+                    byte[] program = new byte[payload.getInt()];
+                    payload.get(program);
+                    scripts.add(new Script(program));
+                }
+                if (type == SCRIPTS_ADDED)
+                    wallet.addWatchedScripts(scripts);
+                else
+                    wallet.removeWatchedScripts(scripts);
+                break;
+            case TRANSACTION:
+                byte[] bytes = new byte[payload.remaining()];
+                payload.get(bytes);
+                Transaction tx = new Transaction(wallet.getParams(), bytes);
+                if (wallet.getTransaction(tx.getHash()) == null) {
+                    // As committed by the wallet when sent, so its change can be spent before it confirms.
+                    if (spendsOwnCoins(tx))
+                        tx.getConfidence().setSource(TransactionConfidence.Source.SELF);
+                    wallet.receivePending(tx, null);
+                }
+                break;
+            default:
+                System.out.println("Skipping unknown journal record of type " + type);
+        }
+    }
+
+    /** Whether the transaction spends an output of the wallet's own keys, rather than only watched ones. */
+    private boolean spendsOwnCoins(Transaction tx) {
+        for (TransactionInput input : tx.getInputs()) {
+            TransactionOutPoint outpoint = input.getOutpoint();
+            Transaction spent = wallet.getTransaction(outpoint.getHash());
+            if (spent != null && outpoint.getIndex() < spent.getOutputs().size()
+                    && spent.getOutput(outpoint.getIndex()).isMine(wallet))
+                return true;
+        }
+        return false;
+    }
+
+    private static boolean equal(Sha256Hash a, Sha256Hash b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private void truncate(FileChannel channel, File segment, long position) throws IOException {
+        System.out.println("Dropping torn journal record at " + position + " of " + segment);
+        channel.truncate(position);
+    }
+
+    private File segmentFile(int generation) {
+        return new File(walletFile.getAbsoluteFile().getParentFile(), walletFile.getName() + ".journal." + generation);
+    }
+
+    /** The journal segments of the wallet, oldest first. */
+    private List<File> segments() {
+        final String prefix = walletFile.getName() + ".journal.";
+        File[] files = walletFile.getAbsoluteFile().getParentFile().listFiles(new FileFilter() {
+            public boolean accept(File file) {
+                return file.getName().startsWith(prefix) && file.getName().substring(prefix.length()).matches("\\d+");
+            }
+        });
+        List<File> segments = files == null ? new ArrayList<File>() : new ArrayList<File>(Arrays.asList(files));
+        Collections.sort(segments, new Comparator<File>() {
+            public int compare(File a, File b) {
+                return Integer.compare(generationOf(a), generationOf(b));
+            }
+        });
+        return segments;
+    }
+
+    private int generationOf(File segment) {
+        String name = segment.getName();
+        return Integer.parseInt(name.substring(name.lastIndexOf('.') + 1));
+    }
+
+    private static void delete(File file) {
+        if (!file.delete() && file.exists())
+            System.out.println("Unable to delete " + file);
+    }
+}
@@ -0,0 +1,87 @@
+package com.assistantindustries.bytewallet;
+
+import org.bitcoinj.core.TransactionBroadcaster;
+import org.bitcoinj.wallet.Wallet;
+
+/**
+ * One wallet of a sharded backend and the components answering for it: its address index, balance cache and history,
+ * the addresses it watches, its address pool and the sender and batcher paying from it.
+ */
+public class WalletShard {
+
+    private final int id;
+    private final Wallet wallet;
+    private final AddressIndex addressIndex;
+    private final BalanceCache balanceCache;
+    private final AddressHistory history;
+    private final WatchedAddressBatcher watchedAddresses;
+    private final TransactionSender sender;
+    private final AddressPool addressPool;
+    private final PayoutBatcher payoutBatcher;
+
+    public WalletShard(int id, Wallet wallet, TransactionBroadcaster broadcaster, Settings settings) {
+        this(id, wallet, null, broadcaster, settings);
+    }
+
+    /** @param journal the journal saving the wallet, recording the keys the address pool issues. May be null. */
+    public WalletShard(int id, Wallet wallet, WalletJournal journal, TransactionBroadcaster broadcaster, Settings settings) {
+        this.id = id;
+        this.wallet = wallet;
+        this.addressIndex = new AddressIndex(wallet);
+        addressIndex.attach();
+        this.balanceCache = new BalanceCache(wallet, addressIndex, settings.getInt("cache.maxAddresses", 10000));
+        balanceCache.attach();
+        this.history = new AddressHistory(wallet);
+        history.attach();
+        this.watchedAddresses = new WatchedAddressBatcher(wallet, settings);
+        this.sender = new TransactionSender(wallet, broadcaster, settings);
+        this.addressPool = new AddressPool(wallet, settings, journal);
+        this.payoutBatcher = new PayoutBatcher(wallet, sender, addressPool, settings);
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public Wallet getWallet() {
+        return wallet;
+    }
+
+    public AddressIndex getAddressIndex() {
+        return addressIndex;
+    }
+
+    public BalanceCache getBalanceCache() {
+        return balanceCache;
+    }
+
+    public AddressHistory getHistory() {
+        return history;
+    }
+
+    public WatchedAddressBatcher getWatchedAddresses() {
+        return watchedAddresses;
+    }
+
+    public TransactionSender getSender() {
+        return sender;
+    }
+
+    public AddressPool getAddressPool() {
+        return addressPool;
+    }
+
+    public PayoutBatcher getPayoutBatcher() {
+        return payoutBatcher;
+    }
+
+    public void stop() {
+        payoutBatcher.stop();
+        sender.stop();
+        addressPool.stop();
+        watchedAddresses.stop();
+        history.detach();
+        balanceCache.detach();
+        addressIndex.detach();
+    }
+}
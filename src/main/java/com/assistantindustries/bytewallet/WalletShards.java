@@ -0,0 +1,240 @@
+package com.assistantindustries.bytewallet;
+
+import com.google.common.primitives.Ints;
+import com.google.common.util.concurrent.Futures;
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionBroadcaster;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.utils.Threading;
+import org.bitcoinj.wallet.Wallet;
+import org.bitcoinj.wallet.listeners.KeyChainEventListener;
+import org.bitcoinj.wallet.listeners.ScriptsChangeEventListener;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Spreads the addresses over several wallets, so wallet lock contention and save time depend on the size of a shard
+ * instead of on every address ever issued. An address belongs to the shard whose keys derived it or that already
+ * watches it; any other address, such as one subscribed to for the first time, goes to the shard picked by its hash,
+ * so it always lands on the same one. Queries over the whole backend run on every shard in parallel.
+ * <p>
+ * The owner of every key and watched address is kept in a map, filled from the wallets on startup and updated as they
+ * derive keys or change the addresses they watch, so finding the shard of an address doesn't ask every wallet. With a
+ * single shard there is no map and every call goes straight to it on the caller's thread.
+ */
+public class WalletShards {
+
+    private final List<WalletShard> shards;
+    private final ConcurrentHashMap<Address, WalletShard> owners; //Null with a single shard
+    private final ExecutorService executor;
+    private final AtomicInteger nextIssuer = new AtomicInteger();
+
+    public WalletShards(List<Wallet> wallets, TransactionBroadcaster broadcaster, Settings settings) {
+        this(wallets, Collections.<WalletJournal>emptyList(), broadcaster, settings);
+    }
+
+    /** @param journals the journal of each wallet, in the same order, or an empty list if they aren't journaled. */
+    public WalletShards(List<Wallet> wallets, List<WalletJournal> journals, TransactionBroadcaster broadcaster,
+                        Settings settings) {
+        List<WalletShard> shards = new ArrayList<WalletShard>(wallets.size());
+        for (int i = 0; i < wallets.size(); i++) {
+            WalletJournal journal = journals.isEmpty() ? null : journals.get(i);
+            shards.add(new WalletShard(i, wallets.get(i), journal, broadcaster, settings));
+        }
+        this.shards = Collections.unmodifiableList(shards);
+        this.owners = shards.size() > 1 ? new ConcurrentHashMap<Address, WalletShard>() : null;
+        if (owners != null) {
+            for (WalletShard shard : shards) {
+                trackOwnership(shard);
+            }
+        }
+        // The calling thread queries one shard itself.
+        this.executor = shards.size() > 1 ? Executors.newFixedThreadPool(shards.size() - 1) : null;
+    }
+
+    public List<WalletShard> getShards() {
+        return shards;
+    }
+
+    public WalletShard get(int id) {
+        return shards.get(id);
+    }
+
+    public int size() {
+        return shards.size();
+    }
+
+    /** The shard owning or watching the address, or the one its hash partitions it to. */
+    public WalletShard shardFor(Address address) {
+        if (owners == null)
+            return shards.get(0);
+        WalletShard owner = owners.get(address);
+        return owner != null ? owner : shards.get(partition(address));
+    }
+
+    /** Deterministic shard for an address owned by none, from the first bytes of its hash. */
+    public int partition(Address address) {
+        return (Ints.fromByteArray(address.getHash160()) & Integer.MAX_VALUE) % shards.size();
+    }
+
+    /** A fresh receive address, taking turns between the shards so they grow evenly. */
+    public Address freshReceiveAddress() {
+        int issuer = (nextIssuer.getAndIncrement() & Integer.MAX_VALUE) % shards.size();
+        return shards.get(issuer).getAddressPool().take();
+    }
+
+    /** Sum of the available balances of the shards. */
+    public Coin getWalletBalance() {
+        Coin total = Coin.ZERO;
+        for (Coin balance : scatter(new Function<WalletShard, Coin>() {
+            public Coin apply(WalletShard shard) {
+                return shard.getBalanceCache().getWalletBalance();
+            }
+        })) {
+            total = total.add(balance);
+        }
+        return total;
+    }
+
+    /** Balances of the addresses, in request order, with each shard reading its own addresses in parallel. */
+    public long[] getBalances(final List<Address> addresses, final int minDepth) {
+        if (shards.size() == 1)
+            return shards.get(0).getAddressIndex().getBalances(addresses, minDepth);
+        final List<List<Integer>> positions = new ArrayList<List<Integer>>(shards.size());
+        for (int i = 0; i < shards.size(); i++) {
+            positions.add(new ArrayList<Integer>());
+        }
+        for (int i = 0; i < addresses.size(); i++) {
+            positions.get(shardFor(addresses.get(i)).getId()).add(i);
+        }
+        final long[] balances = new long[addresses.size()];
+        scatter(new Function<WalletShard, Void>() {
+            public Void apply(WalletShard shard) {
+                List<Integer> owned = positions.get(shard.getId());
+                if (owned.isEmpty())
+                    return null;
+                List<Address> subset = new ArrayList<Address>(owned.size());
+                for (int position : owned) {
+                    subset.add(addresses.get(position));
+                }
+                long[] found = shard.getAddressIndex().getBalances(subset, minDepth);
+                for (int i = 0; i < found.length; i++) {
+                    balances[owned.get(i)] = found[i];
+                }
+                return null;
+            }
+        });
+        return balances;
+    }
+
+    /** The transaction as known to the first shard holding it, or null if none does. */
+    public Transaction getTransaction(Sha256Hash hash) {
+        for (WalletShard shard : shards) {
+            Transaction transaction = shard.getWallet().getTransaction(hash);
+            if (transaction != null)
+                return transaction;
+        }
+        return null;
+    }
+
+    /**
+     * The shard that funds a payment: the one with the largest available balance. A payment is never split between
+     * shards, so it may fail for lack of money even if the shards hold enough together.
+     */
+    public WalletShard shardForPayment() {
+        if (shards.size() == 1)
+            return shards.get(0);
+        List<Coin> balances = scatter(new Function<WalletShard, Coin>() {
+            public Coin apply(WalletShard shard) {
+                return shard.getBalanceCache().getWalletBalance();
+            }
+        });
+        int richest = 0;
+        for (int i = 1; i < balances.size(); i++) {
+            if (balances.get(i).isGreaterThan(balances.get(richest)))
+                richest = i;
+        }
+        return shards.get(richest);
+    }
+
+    /** Applies the function to every shard in parallel and returns the results in shard order. */
+    public <T> List<T> scatter(final Function<WalletShard, T> function) {
+        if (shards.size() == 1)
+            return Collections.singletonList(function.apply(shards.get(0)));
+        List<Future<T>> futures = new ArrayList<Future<T>>(shards.size() - 1);
+        for (final WalletShard shard : shards.subList(1, shards.size())) {
+            futures.add(executor.submit(new Callable<T>() {
+                public T call() {
+                    Context.propagate(shard.getWallet().getContext());
+                    return function.apply(shard);
+                }
+            }));
+        }
+        List<T> results = new ArrayList<T>(shards.size());
+        results.add(function.apply(shards.get(0)));
+        for (Future<T> future : futures) {
+            results.add(Futures.getUnchecked(future));
+        }
+        return results;
+    }
+
+    /**
+     * Keeps the addresses of the shard's keys and watched scripts in the owners map. The listeners are added before
+     * the wallet is read, and run on the thread changing the wallet, so no change is missed and the map is up to date
+     * by the time the change returns.
+     */
+    private void trackOwnership(final WalletShard shard) {
+        final Wallet wallet = shard.getWallet();
+        final NetworkParameters params = wallet.getNetworkParameters();
+        wallet.addKeyChainEventListener(Threading.SAME_THREAD, new KeyChainEventListener() {
+            public void onKeysAdded(List<ECKey> keys) {
+                for (ECKey key : keys) {
+                    owners.put(key.toAddress(params), shard);
+                }
+            }
+        });
+        wallet.addScriptChangeEventListener(Threading.SAME_THREAD, new ScriptsChangeEventListener() {
+            public void onScriptsChanged(Wallet wallet, List<Script> scripts, boolean isAddingScripts) {
+                for (Script script : scripts) {
+                    Address address = script.getToAddress(params);
+                    if (isAddingScripts)
+                        owners.put(address, shard);
+                    else if (!wallet.isPubKeyHashMine(address.getHash160()))
+                        owners.remove(address, shard);
+                }
+            }
+        });
+        // Lookahead keys included, as payments to them are found in the wallet as well.
+        List<ECKey> keys = new ArrayList<ECKey>(wallet.getImportedKeys());
+        keys.addAll(wallet.getActiveKeyChain().getLeafKeys());
+        for (ECKey key : keys) {
+            owners.putIfAbsent(key.toAddress(params), shard);
+        }
+        for (Script script : wallet.getWatchedScripts()) {
+            owners.putIfAbsent(script.getToAddress(params), shard);
+        }
+    }
+
+    public void stop() {
+        if (executor != null)
+            executor.shutdownNow();
+        for (WalletShard shard : shards) {
+            shard.stop();
+        }
+    }
+}
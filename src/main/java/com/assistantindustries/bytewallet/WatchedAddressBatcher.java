@@ -0,0 +1,186 @@
+package com.assistantindustries.bytewallet;
+
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.Utils;
+import org.bitcoinj.wallet.Wallet;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects watched address additions and removals for a short window and applies them to the wallet in bulk. Every
+ * wallet call changing watched scripts saves the wallet and makes the peer group recalculate and resend its bloom
+ * filter, so a client subscribing to hundreds of addresses at once now costs one of each instead of hundreds. An
+ * address added and removed again within the window never reaches the wallet. {@link #whenApplied(Runnable)} lets a
+ * caller wait for the changes it made to reach the wallet, such as a subscription acknowledged only once its address
+ * is watched.
+ */
+public class WatchedAddressBatcher {
+
+    private final Wallet wallet;
+    private final long windowMillis;
+    private final ScheduledExecutorService scheduler;
+
+    private final Object flushing = new Object(); //Held while applying, so batches reach the wallet in order
+
+    private LinkedHashMap<Address, Boolean> pending; //true to watch the address, false to stop watching it
+    private List<Runnable> waiting; //Run once the pending changes are applied
+    private List<Runnable> applying; //Run once the changes being applied are, null when none are
+    private int pendingRequests; //Watch and unwatch calls behind the pending changes
+    private boolean flushScheduled;
+
+    private final AtomicLong requested = new AtomicLong();
+    private final AtomicLong walletUpdates = new AtomicLong();
+    private final AtomicLong rebuildsAvoided = new AtomicLong();
+
+    public WatchedAddressBatcher(Wallet wallet, Settings settings) {
+        this(wallet, settings.getLong("watch.batchMillis", 200L));
+    }
+
+    /** A window of 0 applies every change immediately. */
+    public WatchedAddressBatcher(Wallet wallet, long windowMillis) {
+        this.wallet = wallet;
+        this.windowMillis = windowMillis;
+        this.scheduler = windowMillis > 0 ? Executors.newSingleThreadScheduledExecutor() : null;
+        this.pending = new LinkedHashMap<Address, Boolean>();
+        this.waiting = new ArrayList<Runnable>();
+    }
+
+    public void watch(Address address) {
+        change(address, true);
+    }
+
+    public void unwatch(Address address) {
+        change(address, false);
+    }
+
+    /**
+     * Runs the callback once every change requested so far has been applied to the wallet: right away if none is
+     * waiting, otherwise on the thread applying them.
+     */
+    public void whenApplied(Runnable callback) {
+        synchronized (this) {
+            if (!pending.isEmpty()) {
+                waiting.add(callback);
+                return;
+            }
+            if (applying != null) {
+                applying.add(callback);
+                return;
+            }
+        }
+        callback.run();
+    }
+
+    /** Applies the pending changes now. */
+    public void flush() {
+        synchronized (flushing) {
+            LinkedHashMap<Address, Boolean> changes;
+            List<Runnable> callbacks;
+            int requests;
+            synchronized (this) {
+                changes = pending;
+                callbacks = waiting;
+                requests = pendingRequests;
+                pendingRequests = 0;
+                pending = new LinkedHashMap<Address, Boolean>();
+                waiting = new ArrayList<Runnable>();
+                applying = callbacks;
+                flushScheduled = false;
+            }
+            try {
+                rebuildsAvoided.addAndGet(requests - apply(changes));
+            } finally {
+                synchronized (this) {
+                    applying = null;
+                }
+                for (Runnable callback : callbacks) {
+                    try {
+                        callback.run();
+                    } catch (RuntimeException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        }
+    }
+
+    /** Watch and unwatch calls received. */
+    public long getRequested() {
+        return requested.get();
+    }
+
+    /** Bulk wallet updates made, each one a wallet save and a bloom filter recalculation. */
+    public long getWalletUpdates() {
+        return walletUpdates.get();
+    }
+
+    /** Filter recalculations avoided compared to applying every call on its own, counted as each batch is applied. */
+    public long getFilterRebuildsAvoided() {
+        return rebuildsAvoided.get();
+    }
+
+    public void stop() {
+        if (scheduler != null)
+            scheduler.shutdown();
+        flush();
+    }
+
+    /** Returns the wallet updates made. */
+    private int apply(Map<Address, Boolean> changes) {
+        List<Address> added = new ArrayList<Address>();
+        List<Address> removed = new ArrayList<Address>();
+        for (Map.Entry<Address, Boolean> change : changes.entrySet()) {
+            boolean watched = wallet.isAddressWatched(change.getKey());
+            if (change.getValue() && !watched)
+                added.add(change.getKey());
+            else if (!change.getValue() && watched)
+                removed.add(change.getKey());
+        }
+        if (!added.isEmpty()) {
+            wallet.addWatchedAddresses(added, Utils.currentTimeSeconds());
+            walletUpdates.incrementAndGet();
+        }
+        if (!removed.isEmpty()) {
+            wallet.removeWatchedAddresses(removed);
+            walletUpdates.incrementAndGet();
+        }
+        return (added.isEmpty() ? 0 : 1) + (removed.isEmpty() ? 0 : 1);
+    }
+
+    private void change(Address address, boolean watch) {
+        requested.incrementAndGet();
+        if (scheduler == null) {
+            synchronized (this) {
+                pending.put(address, watch);
+                pendingRequests++;
+            }
+            flush();
+            return;
+        }
+        synchronized (this) {
+            pending.put(address, watch);
+            pendingRequests++;
+            if (flushScheduled)
+                return;
+            flushScheduled = true;
+        }
+        scheduler.schedule(new Runnable() {
+            public void run() {
+                try {
+                    Context.propagate(wallet.getContext());
+                    flush();
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+        }, windowMillis, TimeUnit.MILLISECONDS);
+    }
+}
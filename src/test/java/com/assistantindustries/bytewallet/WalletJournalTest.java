@@ -0,0 +1,206 @@
+package com.assistantindustries.bytewallet;
+
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.BlockChain;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionConfidence;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.TransactionOutPoint;
+import org.bitcoinj.params.RegTestParams;
+import org.bitcoinj.store.MemoryBlockStore;
+import org.bitcoinj.wallet.SendRequest;
+import org.bitcoinj.wallet.Wallet;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Recovery of a wallet from its last snapshot and journal, with the files copied while the journal is still open as
+ * a crash would leave them.
+ */
+public class WalletJournalTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final NetworkParameters params = RegTestParams.get();
+    private final Random random = new Random(42);
+    private final List<WalletJournal> opened = new ArrayList<WalletJournal>();
+    private File running;
+    private File crashed;
+
+    @Before
+    public void setUp() throws IOException {
+        Context.propagate(new Context(params));
+        running = folder.newFolder("running");
+        crashed = folder.newFolder("crashed");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        for (WalletJournal journal : opened) {
+            journal.close();
+        }
+    }
+
+    @Test
+    public void tornRecordIsDroppedAndEarlierOnesReplayed() throws Exception {
+        Wallet wallet = new Wallet(params);
+        open(wallet, new File(running, "test.wallet"));
+        Address watched = new ECKey().toAddress(params);
+        wallet.addWatchedAddress(watched);
+
+        File segment = crash();
+        FileOutputStream out = new FileOutputStream(segment, true);
+        try {
+            out.write(new byte[]{0, 0, 0, 40, 2, 0}); //A record cut off after its first bytes
+        } finally {
+            out.close();
+        }
+
+        Wallet recovered = recover();
+        assertTrue(recovered.isAddressWatched(watched));
+    }
+
+    @Test
+    public void segmentWithoutWholeHeaderIsDeleted() throws Exception {
+        File walletFile = new File(crashed, "test.wallet");
+        new Wallet(params).saveToFile(walletFile);
+        File empty = new File(crashed, "test.wallet.journal.7");
+        FileOutputStream out = new FileOutputStream(empty);
+        try {
+            out.write(new byte[]{0x42, 0x4a}); //Header cut short
+        } finally {
+            out.close();
+        }
+
+        recover();
+        assertFalse(empty.exists());
+        assertTrue(new File(crashed, "test.wallet.journal.8").exists());
+    }
+
+    @Test
+    public void segmentWithWrongHeaderIsRejected() throws Exception {
+        File walletFile = new File(crashed, "test.wallet");
+        new Wallet(params).saveToFile(walletFile);
+        Files.write(new File(crashed, "test.wallet.journal.1").toPath(), new byte[]{1, 2, 3, 4});
+
+        try {
+            open(Wallet.loadFromFile(walletFile), walletFile);
+            fail("Opened a journal with a wrong header");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void pendingTransactionsReplayIntoSnapshotOlderThanChain() throws Exception {
+        MemoryBlockStore store = new MemoryBlockStore(params);
+        Wallet wallet = new Wallet(params);
+        BlockChain chain = new BlockChain(params, wallet, store);
+        Block funded = mine(chain, payment(wallet.freshReceiveAddress(), Coin.COIN));
+        open(wallet, new File(running, "test.wallet"));
+
+        // Journaled after the snapshot: a payment received and one sent, both pending, then a block confirming them.
+        Transaction received = payment(wallet.freshReceiveAddress(), Coin.CENT);
+        wallet.receivePending(received, null);
+        SendRequest request = SendRequest.to(new ECKey().toAddress(params), Coin.COIN.divide(2));
+        wallet.completeTx(request);
+        wallet.commitTx(request.tx);
+        Transaction sent = request.tx;
+        Block confirming = mine(chain, received, sent);
+        Coin balance = wallet.getBalance();
+
+        crash();
+        // A new context, so the confidence of the transactions isn't shared with the crashed wallet.
+        Context.propagate(new Context(params));
+        Wallet recovered = recover();
+        assertEquals(funded.getHash(), recovered.getLastBlockSeenHash());
+        assertNotNull(recovered.getTransaction(received.getHash()));
+        Transaction replayed = recovered.getTransaction(sent.getHash());
+        assertNotNull(replayed);
+        assertEquals(TransactionConfidence.Source.SELF, replayed.getConfidence().getSource());
+        assertEquals(TransactionConfidence.ConfidenceType.PENDING, replayed.getConfidence().getConfidenceType());
+
+        // Joining the chain rolls it back to the snapshot, and the block confirming both is downloaded again.
+        BlockChain recoveredChain = new BlockChain(params, recovered, store);
+        assertEquals(1, recoveredChain.getBestChainHeight());
+        assertTrue(recoveredChain.add(confirming));
+        assertEquals(3, recovered.getTransactions(false).size());
+        assertEquals(TransactionConfidence.ConfidenceType.BUILDING,
+                recovered.getTransaction(sent.getHash()).getConfidence().getConfidenceType());
+        assertEquals(balance, recovered.getBalance());
+    }
+
+    private WalletJournal open(Wallet wallet, File walletFile) throws IOException {
+        WalletJournal journal = new WalletJournal(wallet, walletFile, true, 1L << 20, 3600000L);
+        journal.open();
+        opened.add(journal);
+        return journal;
+    }
+
+    /** Copies the running wallet's files as a crash would leave them, returns the copy of the last segment. */
+    private File crash() throws IOException {
+        File[] files = running.listFiles();
+        assertNotNull(files);
+        File last = null;
+        for (File file : files) {
+            File copy = new File(crashed, file.getName());
+            Files.copy(file.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            if (file.getName().contains(".journal.") && (last == null || file.getName().compareTo(last.getName()) > 0))
+                last = copy;
+        }
+        assertNotNull(last);
+        return last;
+    }
+
+    /** Loads the crashed wallet and replays its journal. */
+    private Wallet recover() throws Exception {
+        File walletFile = new File(crashed, "test.wallet");
+        Wallet wallet = Wallet.loadFromFile(walletFile);
+        open(wallet, walletFile);
+        return wallet;
+    }
+
+    private Block mine(BlockChain chain, Transaction... transactions) throws Exception {
+        Block block = chain.getChainHead().getHeader().createNextBlock(new ECKey().toAddress(params));
+        for (Transaction tx : transactions) {
+            block.addTransaction(tx);
+        }
+        block.solve();
+        assertTrue(chain.add(block));
+        return block;
+    }
+
+    /** A transaction from nowhere paying the value to the address. */
+    private Transaction payment(Address to, Coin value) {
+        Transaction tx = new Transaction(params);
+        byte[] hash = new byte[32];
+        random.nextBytes(hash);
+        tx.addInput(new TransactionInput(params, tx, new byte[]{1}, new TransactionOutPoint(params, 0, Sha256Hash.wrap(hash))));
+        tx.addOutput(value, to);
+        return tx;
+    }
+}